@@ -1,5 +1,7 @@
 package kcp;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 /**
@@ -8,7 +10,8 @@ import java.util.Arrays;
  * <li>Average RTT reduce 30% - 40% vs traditional ARQ like tcp.
  * <li>Maximum RTT reduce three times vs tcp.
  * <li>Lightweight, distributed as a single source file.
- * <p>Imports: System.out.printf; System.arraycopy; Arrays.copyOf; Integer.MAX_VALUE; Math.min; Math.max; Math.abs
+ * <p>Imports: System.out.printf; System.arraycopy; Arrays.copyOf; Integer.MAX_VALUE; Math.min; Math.max; Math.abs;
+ * ByteBuffer; ByteOrder
  * <p>Usage: new->update(flush)->check; send->update(flush)->check; input->peeksize->recv->update(flush)->check
  */
 public abstract class Kcp {
@@ -29,6 +32,19 @@ public abstract class Kcp {
 	public static final int IKCP_CMD_ACK = 82;         // cmd: ack
 	public static final int IKCP_CMD_WASK = 83;        // cmd: window probe (ask)
 	public static final int IKCP_CMD_WINS = 84;        // cmd: window size (tell)
+	public static final int IKCP_CMD_SACK = 85;        // cmd: ack ranges, only to the remote with IKCP_SACK_OK
+	public static final int IKCP_SACK_OK = 0x1;        // frg flag of ACK/WASK/WINS/SACK: the sender can input SACK
+	public static final int IKCP_SACK_RANGE = 10;      // SACK payload per range: sn(4) count(2) ts(4)
+	public static final int IKCP_CMD_COMPACT = 86;     // compact packet: conv(4) 86(1) wnd(2) una(2), then compact segments
+	public static final int IKCP_COMPACT_OK = 0x2;     // frg flag of ACK/WASK/WINS/SACK: the sender can input compact packets
+	public static final int IKCP_COMPACT_HEAD = 9;
+	public static final int IKCP_COMPACT_SEG = 11;     // max compact PUSH header: type(1) frg(1) ts(4) sn(2) len(1~3)
+	public static final int IKCP_COMPACT_WND = 0x4000; // compact only if windows are below it (sn and una in 16 bits)
+	public static final int IKCP_PACKET_MIN = IKCP_COMPACT_HEAD + 1; // min size of a valid packet
+	public static final int IKCP_PACK_OK = 0x4;        // frg flag of ACK/WASK/WINS/SACK: the sender can input packed PUSH
+	public static final int IKCP_FRG_PACKED = 0x80;    // frg of PUSH: payload is small messages, each len(varint) + data
+	public static final int IKCP_LARGE_OK = 0x8;       // frg flag of ACK/WASK/WINS/SACK: the sender can input IKCP_FRG_LARGE
+	public static final int IKCP_FRG_LARGE = 0x81;     // frg of PUSH: fragment of a large message, more follow (last is 0)
 	public static final int IKCP_ASK_SEND = 0x1;       // need to send IKCP_CMD_WASK
 	public static final int IKCP_ASK_TELL = 0x2;       // need to send IKCP_CMD_WINS
 	public static final int IKCP_WND_SND = 32;
@@ -42,13 +58,13 @@ public abstract class Kcp {
 	public static final int IKCP_PROBE_INIT = 7000;    // 7 secs to probe window size
 	public static final int IKCP_PROBE_LIMIT = 120000; // up to 120 secs to probe window
 	public static final int IKCP_FASTACK_LIMIT = 5;    // max times to trigger fastack
+	public static final int IKCP_PACE_BURST = 2;       // min pacing bucket size in segments
 	// struct IKCPCB
 	private final int conv;
 	private final int mss; // mtu-IKCP_OVERHEAD [1,0x7fff-IKCP_OVERHEAD]
 	private int snd_una;   // uint32_t
 	private int snd_nxt;   // uint32_t
 	private int rcv_nxt;   // uint32_t
-	private int ssthresh = IKCP_THRESH_INIT; // uint32_t
 	private int rx_rttval;
 	private int rx_srtt;
 	private int rx_rto = IKCP_RTO_DEF;
@@ -56,7 +72,6 @@ public abstract class Kcp {
 	private int snd_wnd = IKCP_WND_SND; // uint32_t [1,]
 	private int rcv_wnd = IKCP_WND_RCV; // uint32_t [IKCP_WND_RCV,]
 	private int rmt_wnd = IKCP_WND_RCV; // uint32_t [0,0xffff]
-	private int cwnd;    // uint32_t
 	private int current; // uint32_t
 	private int interval = IKCP_INTERVAL; // uint32_t
 	private int ts_flush;   // uint32_t
@@ -65,20 +80,59 @@ public abstract class Kcp {
 	private int nsnd_que;   // uint32_t
 	private int ts_probe;   // uint32_t
 	private int probe_wait; // uint32_t
-	private int incr;       // uint32_t
-	private final KcpSeg snd_buf = new KcpSeg();   // input, check(R), flush
+	private int pacing;      // pacing gain in percent of cwnd per srtt, 0 for disabled
+	private int pace_tokens; // bytes can be sent now, negative after unpaced retransmits
+	private int pace_ts;     // uint32_t, last time of refilling pace_tokens
+	private int pace_next;   // uint32_t, when the next paced segment is due if pace_wait
+	private boolean pace_wait;
+	private KcpSeg[] snd_buf = new KcpSeg[IKCP_WND_SND]; // input, check(R), flush; ring indexed by sn, length is power of 2
+	private int[] snd_ts = new int[IKCP_WND_SND];       // uint32_t, parallel to snd_buf
+	private int[] snd_resendts = new int[IKCP_WND_SND]; // uint32_t, parallel to snd_buf
+	private int[] snd_rto = new int[IKCP_WND_SND];      // uint32_t, parallel to snd_buf
+	private int[] snd_fastack = new int[IKCP_WND_SND];  // uint32_t, parallel to snd_buf
+	private int[] snd_xmit = new int[IKCP_WND_SND];     // uint32_t, parallel to snd_buf
+	private int[] snd_heappos = new int[IKCP_WND_SND];  // parallel to snd_buf, index in snd_heap
+	private int[] snd_heap = new int[IKCP_WND_SND];     // snd_buf slots in flight, min-heap by snd_resendts
+	private int nsnd_heap;
+	private int[] fastlist = new int[16]; // uint32_t*, sn which fastack reached fastresend
+	private int fastcount;
 	private final KcpSeg snd_queue = new KcpSeg(); // send, update->flush
-	private final KcpSeg rcv_buf = new KcpSeg();   // input, recv
-	private final KcpSeg rcv_queue = new KcpSeg(); // input, recv, peeksize(R)
+	private KcpSeg[] rcv_buf = new KcpSeg[IKCP_WND_RCV * 2]; // input, recv, peeksize(R); ring indexed by sn, length is power of 2
+	// rcv_buf: [rcv_nxt-nrcv_que,rcv_nxt) is rcv_queue (all present), [rcv_nxt,rcv_nxt+rcv_wnd) is receive window (with holes)
 	private int ackcount;  // uint32_t
 	private int[] acklist = new int[16]; // uint32_t*
-	protected final byte[] buffer;
+	protected final byte[] buffer;    // output data if outbuf is an array from offset 0, null for direct or other views
+	protected final ByteBuffer outbuf; // output data view (little endian), [position,limit) is the data in 'output'
 	private int fastresend = -1;
 	private byte logmask;
+	private KcpMetrics metrics; // null for disabled
+	private KcpRecorder recorder; // null for disabled
 	private byte probe; // flags: IKCP_ASK_SEND, IKCP_ASK_TELL
 	private byte nodelay; // [0,2]
 	private final boolean stream; // send
 	private boolean nocwnd;
+	private KcpCongestion cc = new KcpReno(); // decides cwnd
+	private boolean sack;  // input/output SACK if remote supports
+	private byte rmt_sack; // 0:unknown, 1:remote supports SACK, -1:legacy remote
+	private boolean compact;  // output compact packets if remote supports
+	private byte rmt_compact; // 0:unknown, 1:remote supports compact packets, -1:legacy remote
+	private boolean cpkt;     // flush: the current packet is compact
+	private boolean cpkt_ts;  // flush: ts of PUSH is written in the current compact packet
+	private int coalesce = -1; // max delay in millisec to pack small messages, -1 for disabled
+	private byte rmt_pack;     // 0:unknown, 1:remote supports packed PUSH, -1:legacy remote
+	private int pack_next;     // uint32_t, when the held packed segment is due if pack_wait
+	private boolean pack_wait;
+	private int rcv_packoff;   // read offset in the head of rcv_queue: packed segment, or partially read in streaming mode
+	private boolean large;     // send messages of IKCP_WND_RCV fragments or more as IKCP_FRG_LARGE if remote supports
+	private byte rmt_large;    // 0:unknown, 1:remote supports IKCP_FRG_LARGE, -1:legacy remote
+	private boolean chunk_end = true; // the last recvChunk completed a message
+	private int in_una;        // uint32_t, snd_una before the current input (batch)
+	private int in_nsnd_buf;   // nsnd_buf before the current input (batch)
+	private int in_acks;       // packets with ACK/SACK in the current input (batch)
+	private int in_maxack;     // uint32_t, the max of their max acknowledged sn if in_acks > 0
+	private int in_maxts;      // uint32_t, ts of in_maxack
+	private int in_minack;     // uint32_t, the min of their max acknowledged sn if in_acks > 0
+	private int in_mints;      // uint32_t, ts of in_minack
 
 	static void encode8u(byte[] b, int p, byte v) {
 		b[p] = v;
@@ -108,28 +162,119 @@ public abstract class Kcp {
 		return (b[p] & 0xff) + ((b[p + 1] & 0xff) << 8) + ((b[p + 2] & 0xff) << 16) + (b[p + 3] << 24);
 	}
 
-	private void encode_seg(int pos, KcpSeg seg) {
-		final byte[] buf = buffer;
-		encode32u(buf, pos, conv);
-		encode8u(buf, pos + 4, seg.cmd);
-		encode8u(buf, pos + 5, seg.frg);
-		encode16u(buf, pos + 6, seg.wnd);
-		encode32u(buf, pos + 8, seg.ts);
-		encode32u(buf, pos + 12, seg.sn);
-		encode32u(buf, pos + 16, seg.una);
-		encode32u(buf, pos + 20, seg.len);
+	private static int get8u(final byte[] buf, final ByteBuffer bbuf, final int p) { // bbuf is little endian
+		return buf != null ? buf[p] & 0xff : bbuf.get(p) & 0xff;
+	}
+
+	private static int get16u(final byte[] buf, final ByteBuffer bbuf, final int p) {
+		return buf != null ? decode16u(buf, p) : bbuf.getShort(p) & 0xffff;
+	}
+
+	private static int get32u(final byte[] buf, final ByteBuffer bbuf, final int p) {
+		return buf != null ? decode32u(buf, p) : bbuf.getInt(p);
+	}
+
+	private static int getvarint(final byte[] buf, final ByteBuffer bbuf, int p, final int end) { // [0,0x1fffff], -1 for error
+		int v = 0;
+		for (int shift = 0; shift < 21 && p < end; shift += 7) {
+			final int b = get8u(buf, bbuf, p++);
+			v |= (b & 0x7f) << shift;
+			if (b < 0x80)
+				return b == 0 && shift > 0 ? -1 : v; // shortest form only, see varint_size
+		}
+		return -1;
+	}
+
+	private static int varint_size(final int v) {
+		return v < 0x80 ? 1 : v < 0x4000 ? 2 : 3;
+	}
+
+	private int putvarint(int pos, int v) { // v in [0,0x1fffff]
+		final ByteBuffer buf = outbuf;
+		for (; v >= 0x80; v >>>= 7)
+			buf.put(pos++, (byte)(v | 0x80));
+		buf.put(pos++, (byte)v);
+		return pos;
+	}
+
+	private int encode_seg(int pos, int cmd, byte frg, short wnd, int ts, int sn, int una, int len) { // returns the end
+		final ByteBuffer buf = outbuf;
+		if (cpkt) { // wnd and una are in the packet header, sn and echoed ts in 16 bits
+			if (cmd != IKCP_CMD_PUSH) {
+				buf.put(pos++, (byte)((cmd - IKCP_CMD_PUSH) | frg << 3));
+				if (cmd == IKCP_CMD_ACK) {
+					buf.putShort(pos, (short)sn);
+					buf.putShort(pos + 2, (short)ts);
+					pos += 4;
+				}
+				return pos;
+			}
+			buf.put(pos++, (byte)((frg != 0 ? 0x8 : 0) | (cpkt_ts ? 0 : 0x10)));
+			if (frg != 0)
+				buf.put(pos++, frg);
+			if (!cpkt_ts) { // ts of all PUSH in a flush is the same
+				cpkt_ts = true;
+				buf.putInt(pos, ts);
+				pos += 4;
+			}
+			buf.putShort(pos, (short)sn);
+			return putvarint(pos + 2, len);
+		}
+		buf.putInt(pos, conv);
+		buf.put(pos + 4, (byte)cmd);
+		buf.put(pos + 5, frg);
+		buf.putShort(pos + 6, wnd);
+		buf.putInt(pos + 8, ts);
+		buf.putInt(pos + 12, sn);
+		buf.putInt(pos + 16, una);
+		buf.putInt(pos + 20, len);
+		return pos + IKCP_OVERHEAD;
+	}
+
+	// make room at 'pos' for a segment (output the packet if full), returns where it goes. only for flush
+	private int seg_room(int pos, final int cmd, final int len, final short wnd) {
+		final int size = !cpkt ? IKCP_OVERHEAD + len : cmd == IKCP_CMD_PUSH ? IKCP_COMPACT_SEG + len
+				: cmd == IKCP_CMD_ACK ? 5 : cmd == IKCP_CMD_SACK ? 2 + 7 : 1;
+		if (pos + size > mss + IKCP_OVERHEAD) {
+			output0(pos);
+			pos = 0;
+		}
+		if (pos == 0 && cpkt) {
+			final ByteBuffer buf = outbuf;
+			buf.putInt(0, conv);
+			buf.put(4, (byte)IKCP_CMD_COMPACT);
+			buf.putShort(5, wnd);
+			buf.putShort(7, (short)rcv_nxt);
+			cpkt_ts = false;
+			pos = IKCP_COMPACT_HEAD;
+		}
+		return pos;
+	}
+
+	private static int fixmtu(final int mtu) {
+		return mtu <= IKCP_OVERHEAD || mtu > 0x7fff ? IKCP_MTU_DEF : mtu;
 	}
 
 	/**
 	 * create a new kcp control object, 'conv' must equal in two endpoint from the same connection.
 	 */
-	public Kcp(final int conv, final int current, int mtu, final byte[] buffer, final boolean stream) {
-		if (mtu <= IKCP_OVERHEAD || mtu > 0x7fff)
-			mtu = IKCP_MTU_DEF;
+	public Kcp(final int conv, final int current, final int mtu, final byte[] buffer, final boolean stream) {
+		this(conv, current, ByteBuffer.wrap(buffer != null && buffer.length >= fixmtu(mtu) ? buffer : new byte[fixmtu(mtu)],
+				0, fixmtu(mtu)), stream);
+	}
+
+	/**
+	 * same as above, output to 'buffer' (heap or direct, can be shared) with mtu=buffer.remaining().
+	 * 'buffer' field is null unless it is a writable heap buffer at array offset 0, so 'output' must use 'outbuf'.
+	 */
+	public Kcp(final int conv, final int current, final ByteBuffer buffer, final boolean stream) {
+		final int mtu = fixmtu(buffer.remaining());
 		this.conv = conv;
 		this.stream = stream;
 		mss = mtu - IKCP_OVERHEAD;
-		this.buffer = buffer != null && buffer.length >= mtu ? buffer : new byte[mtu];
+		outbuf = (buffer.remaining() >= mtu ? buffer.slice() : ByteBuffer.allocate(mtu)).order(ByteOrder.LITTLE_ENDIAN);
+		this.buffer = outbuf.hasArray() && outbuf.arrayOffset() == 0 ? outbuf.array() : null;
+		cc.init(mss, current);
 		ts_flush = current + interval;
 		flush(current);
 	}
@@ -138,10 +283,28 @@ public abstract class Kcp {
 		return conv;
 	}
 
+	/**
+	 * max payload of a segment (mtu-IKCP_OVERHEAD), the max message size in one segment
+	 */
+	public final int mss() { // const
+		return mss;
+	}
+
+	/**
+	 * whether it is in streaming mode (set by constructor)
+	 */
+	public final boolean stream() { // const
+		return stream;
+	}
+
 	public final boolean lost() {
-		for (KcpSeg p = snd_buf.next(); p != snd_buf; p = p.next())
-			if (p.xmit < 0 || p.xmit >= IKCP_DEADLINK)
+		final int[] xmit = snd_xmit;
+		final int mask = xmit.length - 1;
+		for (int sn = snd_una; sn != snd_nxt; sn++) {
+			final int x = xmit[sn & mask]; // freed slots are reset to 0
+			if (x < 0 || x >= IKCP_DEADLINK)
 				return true;
+		}
 		return false;
 	}
 
@@ -153,16 +316,39 @@ public abstract class Kcp {
 		return (mask & logmask) != 0;
 	}
 
+	/**
+	 * set instrumentation callbacks (eg. KcpStats), null for disabled
+	 */
+	public final void metrics(final KcpMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public final KcpMetrics metrics() { // const
+		return metrics;
+	}
+
+	/**
+	 * set flight recorder of segments in/out, null for disabled
+	 */
+	public final void recorder(final KcpRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	public final KcpRecorder recorder() { // const
+		return recorder;
+	}
+
 	@SuppressWarnings("MethodMayBeStatic")
 	public void log(String format, Object... args) { // flush, input, recv
 		System.out.printf(format + "%n", args);
 	}
 
 	public KcpSeg allocSeg(int size) { // send, input
-		return new KcpSeg(size);
+		return KcpSegPool.DEFAULT.alloc(size);
 	}
 
-	public void freeSeg(@SuppressWarnings("unused") KcpSeg seg) {
+	public void freeSeg(KcpSeg seg) {
+		KcpSegPool.DEFAULT.free(seg);
 	}
 
 	final void rx_minrto(final int rx_minrto) {
@@ -204,6 +390,78 @@ public abstract class Kcp {
 			rcv_wnd = Math.max(rcvwnd, IKCP_WND_RCV);
 	}
 
+	/**
+	 * replace the congestion controller (KcpReno by default), eg. KcpCubic or KcpBbr for long fat links.
+	 * it is reset and takes effect unless 'nocwnd' (nodelay nc=1)
+	 */
+	public final void congestion(final KcpCongestion cc) {
+		cc.init(mss, current);
+		this.cc = cc;
+	}
+
+	public final KcpCongestion congestion() { // const
+		return cc;
+	}
+
+	/**
+	 * spread new segments over rtt by a token bucket (rate=gain%*cwnd*mtu/srtt) instead of sending cwnd in a burst,
+	 * retransmits take tokens but are not delayed. drive 'update' by 'check' to send paced segments in time
+	 * @param gain percent of the window per srtt, eg. 125, 0 for disabled (default)
+	 */
+	public final void pacing(final int gain) {
+		pacing = Math.max(gain, 0);
+		pace_tokens = 0;
+		pace_ts = current;
+		pace_wait = false;
+	}
+
+	/**
+	 * enable ack ranges (IKCP_CMD_SACK) instead of one ACK per segment, only used after the remote shows
+	 * IKCP_SACK_OK in frg of its ACK/WASK/WINS (a legacy remote keeps plain ACK). disabled by default
+	 */
+	public final void sack(final boolean sack) {
+		this.sack = sack;
+		if (!sack)
+			rmt_sack = 0;
+	}
+
+	/**
+	 * output compact packets (IKCP_CMD_COMPACT) for small messages: conv, wnd and una once per packet, 16-bit sn and
+	 * varint len, about 5 bytes per segment instead of IKCP_OVERHEAD. only used after the remote shows IKCP_COMPACT_OK
+	 * (like sack) and while windows are below IKCP_COMPACT_WND. input always accepts both. disabled by default
+	 */
+	public final void compact(final boolean compact) {
+		this.compact = compact;
+		if (!compact)
+			rmt_compact = 0;
+	}
+
+	/**
+	 * pack small messages (up to mss/2) of message mode into one segment (IKCP_FRG_PACKED), recv unpacks them.
+	 * only used after the remote shows IKCP_PACK_OK (like sack), input always accepts packed segments
+	 * @param delay max millisec to hold a packed segment for more messages, 0 for only those sent before the next
+	 * flush, -1 for disabled (default). drive 'update' by 'check' to send held segments in time
+	 */
+	public final void coalesce(final int delay) {
+		coalesce = Math.max(delay, -1);
+		if (delay < 0)
+			rmt_pack = 0;
+		pack_wait = false;
+	}
+
+	/**
+	 * send messages of IKCP_WND_RCV fragments or more (message mode) as IKCP_FRG_LARGE fragments instead of failing:
+	 * fragmented by flush as the window opens, from a KcpBuf without copy (send(byte[]) copies it once). they are held
+	 * until the remote shows IKCP_LARGE_OK (asked by IKCP_CMD_WASK), send returns -2 for a legacy remote and those
+	 * queued before it is known are dropped.
+	 * the receiver reads them by recvChunk while arriving, recv only gets those fit in the receive window
+	 */
+	public final void large(final boolean large) {
+		this.large = large;
+		if (!large)
+			rmt_large = 0;
+	}
+
 	/**
 	 * get how many packet is waiting to be sent
 	 */
@@ -219,36 +477,83 @@ public abstract class Kcp {
 	private void output0(final int len) { // const, flush
 		if (canlog(IKCP_LOG_OUTPUT))
 			log("[RO] %d bytes", len);
-		if (len > 0)
+		if (len > 0) {
+			outbuf.limit(len);
+			outbuf.position(0);
 			output(len);
+			outbuf.clear();
+		}
 	}
 
 	/**
 	 * user/upper level send, returns below zero for error
 	 */
-	public final int send(final byte[] buf, int pos, int len) {
+	public final int send(final byte[] buf, final int pos, final int len) {
+		return send0(buf, null, pos, len);
+	}
+
+	/**
+	 * same as send(byte[],int,int) for the remaining bytes of 'buf' (heap or direct), position is advanced by used bytes
+	 */
+	public final int send(final ByteBuffer buf) {
+		return send0(null, buf, 0, buf.remaining());
+	}
+
+	private int send0(final byte[] buf, final ByteBuffer bbuf, int pos, int len) { // read bbuf sequentially
 		if (len < 0)
 			return -1;
 
+		final int need = varint_size(len) + len;
+		if (!stream && coalesce >= 0 && rmt_pack > 0 && need <= mss / 2) { // pack small message
+			KcpSeg seg = snd_queue.prev();
+			if (snd_queue.isEmpty() || (seg.frg & 0xff) != IKCP_FRG_PACKED || seg.len + need > mss) {
+				seg = allocSeg(mss);
+				seg.len = 0;
+				seg.frg = (byte)IKCP_FRG_PACKED;
+				seg.ts = current; // for the coalescing delay
+				seg.linkTail(snd_queue);
+				nsnd_que++;
+			}
+			int p = seg.len;
+			for (int v = len; ; v >>>= 7) {
+				if (v < 0x80) {
+					seg.put(p++, (byte)v);
+					break;
+				}
+				seg.put(p++, (byte)(v | 0x80));
+			}
+			if (len > 0) {
+				if (buf != null)
+					seg.put(p, buf, pos, len);
+				else
+					seg.put(p, bbuf, len);
+			}
+			seg.len = p + len;
+			return 0;
+		}
+
 		if (stream) { // append to previous segment in streaming mode (if possible)
 			if (!snd_queue.isEmpty()) {
 				final KcpSeg old = snd_queue.prev();
 				final int oldlen = old.len;
-				if (oldlen < mss) {
+				if (oldlen < mss && old.ref == null) {
 					final int extend = Math.min(len, mss - oldlen);
 					final int newlen = oldlen + extend;
 					final KcpSeg seg;
-					if (old.data.length >= newlen)
+					if (old.capacity() >= newlen)
 						seg = old;
 					else {
 						seg = allocSeg(newlen);
 						seg.linkTail(snd_queue);
-						System.arraycopy(old.data, 0, seg.data, 0, oldlen);
+						seg.put(0, old, oldlen);
 						old.unlink();
 						freeSeg(old);
 					}
 					if (extend > 0) {
-						System.arraycopy(buf, pos, seg.data, oldlen, extend);
+						if (buf != null)
+							seg.put(oldlen, buf, pos, extend);
+						else
+							seg.put(oldlen, bbuf, extend);
 						pos += extend;
 					}
 					seg.len = newlen;
@@ -260,15 +565,28 @@ public abstract class Kcp {
 				return 0;
 		}
 		final int count = Math.max((len + mss - 1) / mss, 1);
-		if (count >= IKCP_WND_RCV)
-			return -2;
+		if (count >= IKCP_WND_RCV) {
+			if (stream || !large || rmt_large < 0)
+				return -2;
+			final KcpBuf kb = new KcpBuf(new byte[len]);
+			if (buf != null)
+				System.arraycopy(buf, pos, kb.data, 0, len);
+			else
+				bbuf.get(kb.data);
+			final int r = send(kb, 0, len);
+			kb.release();
+			return r;
+		}
 
 		// fragment
 		for (int i = 0; i < count; i++) { // count:[1,IKCP_WND_RCV-1]
 			final int size = Math.min(len, mss);
-			final KcpSeg seg = allocSeg(size);
+			final KcpSeg seg = allocSeg(stream ? mss : size); // full size for appending in streaming mode
 			if (size > 0) {
-				System.arraycopy(buf, pos, seg.data, 0, size);
+				if (buf != null)
+					seg.put(0, buf, pos, size);
+				else
+					seg.put(0, bbuf, size);
 				pos += size;
 			}
 			seg.len = size;
@@ -280,34 +598,201 @@ public abstract class Kcp {
 		return 0;
 	}
 
+	/**
+	 * user/upper level send without copy: segments reference [pos,pos+len) of 'buf' and retain it until acknowledged.
+	 * returns below zero for error. the data is never merged with other segments in streaming mode.
+	 */
+	public final int send(final KcpBuf buf, int pos, int len) {
+		if (len < 0 || pos < 0 || pos + len > buf.data.length)
+			return -1;
+		if (stream && len == 0) // nothing to append, as send(byte[],int,int)
+			return 0;
+		final int count = Math.max((len + mss - 1) / mss, 1);
+		if (count >= IKCP_WND_RCV) {
+			if (stream || !large || rmt_large < 0)
+				return -2;
+			final KcpSeg seg = allocSeg(0); // the whole message, fragmented by flush
+			seg.ref = buf.retain();
+			seg.off = pos;
+			seg.len = len;
+			seg.frg = 0;
+			seg.linkTail(snd_queue);
+			nsnd_que += count;
+			return 0;
+		}
+
+		// fragment
+		for (int i = 0; i < count; i++) { // count:[1,IKCP_WND_RCV-1]
+			final int size = Math.min(len, mss);
+			final KcpSeg seg = allocSeg(0);
+			seg.ref = buf.retain();
+			seg.off = pos;
+			seg.len = size;
+			seg.frg = stream ? 0 : (byte)(count - i - 1);
+			seg.linkTail(snd_queue);
+			nsnd_que++;
+			pos += size;
+			len -= size;
+		}
+		return 0;
+	}
+
+	/**
+	 * gather send of the remaining bytes of bufs[off,off+n) (heap or direct) as n messages, positions are advanced.
+	 * 'status' (can be null) gets the result of each like send(ByteBuffer). returns the count of successful ones.
+	 * in streaming mode the bytes are appended in one pass, filling segments across buffer boundaries
+	 */
+	public final int send(final ByteBuffer[] bufs, final int off, final int n, final int[] status) {
+		if (stream)
+			return send_stream(bufs, off, n, status);
+		int sent = 0;
+		for (int i = 0; i < n; i++) {
+			final ByteBuffer buf = bufs[off + i];
+			final int r = buf != null ? send0(null, buf, 0, buf.remaining()) : -1;
+			if (status != null)
+				status[i] = r;
+			if (r == 0)
+				sent++;
+		}
+		return sent;
+	}
+
+	/**
+	 * gather send without copy of the whole data of bufs[off,off+n) as n messages like send(KcpBuf,int,int).
+	 * 'status' (can be null) gets the result of each. returns the count of successful ones
+	 */
+	public final int send(final KcpBuf[] bufs, final int off, final int n, final int[] status) {
+		int sent = 0;
+		for (int i = 0; i < n; i++) {
+			final KcpBuf buf = bufs[off + i];
+			final int r = buf != null ? send(buf, 0, buf.data.length) : -1;
+			if (status != null)
+				status[i] = r;
+			if (r == 0)
+				sent++;
+		}
+		return sent;
+	}
+
+	private int send_stream(final ByteBuffer[] bufs, final int off, final int n, final int[] status) {
+		final int mss = this.mss;
+		KcpSeg seg = null; // the tail segment with free space
+		if (!snd_queue.isEmpty()) {
+			final KcpSeg old = snd_queue.prev();
+			if (old.len < mss && old.ref == null)
+				seg = old;
+		}
+		int sent = 0;
+		for (int i = 0; i < n; i++) {
+			final ByteBuffer buf = bufs[off + i];
+			int len;
+			if (buf == null || (len = buf.remaining()) - (seg != null ? mss - seg.len : 0) > (IKCP_WND_RCV - 1) * mss) {
+				if (status != null)
+					status[i] = buf == null ? -1 : -2;
+				continue;
+			}
+			while (len > 0) {
+				if (seg == null || seg.len == mss) {
+					seg = allocSeg(mss);
+					seg.len = 0;
+					seg.frg = 0;
+					seg.linkTail(snd_queue);
+					nsnd_que++;
+				} else if (seg.capacity() < mss) { // grow the tail segment to full size
+					final KcpSeg old = seg;
+					seg = allocSeg(mss);
+					seg.linkTail(snd_queue);
+					seg.put(0, old, old.len);
+					seg.len = old.len;
+					seg.frg = 0;
+					old.unlink();
+					freeSeg(old);
+				}
+				final int size = Math.min(len, mss - seg.len);
+				seg.put(seg.len, buf, size);
+				seg.len += size;
+				len -= size;
+			}
+			if (status != null)
+				status[i] = 0;
+			sent++;
+		}
+		return sent;
+	}
+
+	private void free_seg(final KcpSeg seg) { // release referenced user buffer before freeSeg
+		final KcpBuf ref = seg.ref;
+		if (ref != null) {
+			seg.ref = null;
+			ref.release();
+		}
+		freeSeg(seg);
+	}
+
+	/**
+	 * release all segments in queues and windows (to 'freeSeg') with referenced user buffers, no more use after it
+	 */
+	public final void release() {
+		while (!snd_queue.isEmpty()) {
+			final KcpSeg seg = snd_queue.next();
+			seg.unlink();
+			free_seg(seg);
+		}
+		nsnd_que = 0;
+		for (int i = 0; i < snd_buf.length; i++) {
+			final KcpSeg seg = snd_buf[i];
+			if (seg != null) {
+				snd_buf[i] = null;
+				free_seg(seg);
+			}
+		}
+		nsnd_buf = 0;
+		nsnd_heap = 0;
+		snd_una = snd_nxt;
+		for (int i = 0; i < rcv_buf.length; i++) {
+			final KcpSeg seg = rcv_buf[i];
+			if (seg != null) {
+				rcv_buf[i] = null;
+				freeSeg(seg);
+			}
+		}
+		nrcv_que = 0;
+		rcv_packoff = 0;
+		ackcount = 0;
+		fastcount = 0;
+	}
+
 	/**
 	 * flush pending data
 	 */
 	public final void flush(final int current) {
 		this.current = current;
-		final KcpSeg seg = snd_buf;
-		seg.cmd = IKCP_CMD_ACK;
-		// seg.frg = 0;
-		seg.wnd = (short)Math.max(rcv_wnd - nrcv_que, 0);
-		seg.ts = 0;
-		seg.sn = 0;
-		seg.una = rcv_nxt;
-		// seg.len = 0;
+		final short wnd = (short)Math.max(rcv_wnd - nrcv_que, 0);
 
 		// flush acknowledges
+		final byte flags = (byte)((sack ? IKCP_SACK_OK : 0) | (compact ? IKCP_COMPACT_OK : 0)
+				| (coalesce >= 0 ? IKCP_PACK_OK : 0) | (large ? IKCP_LARGE_OK : 0));
+		cpkt = compact && rmt_compact > 0 && snd_wnd < IKCP_COMPACT_WND && rcv_wnd < IKCP_COMPACT_WND
+				&& snd_nxt - snd_una < IKCP_COMPACT_WND;
 		int pos = 0;
 		final int count = ackcount;
-		for (int i = 0; i < count; i++) {
-			if (pos > mss) {
-				output0(pos);
-				pos = 0;
+		if (sack && rmt_sack > 0)
+			pos = flush_sack(pos, flags, wnd);
+		else {
+			for (int i = 0; i < count; i++) {
+				pos = seg_room(pos, IKCP_CMD_ACK, 0, wnd);
+				pos = encode_seg(pos, IKCP_CMD_ACK, flags, wnd, acklist[i * 2 + 1], acklist[i * 2], rcv_nxt, 0);
+				if (recorder != null)
+					recorder.record(current, conv, KcpRecorder.EV_OUT, IKCP_CMD_ACK, acklist[i * 2], acklist[i * 2 + 1],
+							rcv_nxt, wnd, rx_rto, 0, 0);
 			}
-			seg.sn = acklist[i * 2];
-			seg.ts = acklist[i * 2 + 1];
-			encode_seg(pos, seg);
-			pos += IKCP_OVERHEAD;
 		}
 		ackcount = 0;
+		if ((sack && rmt_sack == 0 || compact && rmt_compact == 0 || coalesce >= 0 && rmt_pack == 0
+				|| large && rmt_large == 0) && nsnd_buf + nsnd_que > 0)
+			probe |= IKCP_ASK_TELL; // show the flags to the remote which may only receive data
+		if (large && rmt_large == 0 && !snd_queue.isEmpty() && snd_queue.next().len > mss)
+			probe |= IKCP_ASK_SEND; // a large message is held, the remote shows its flags by IKCP_CMD_WINS
 
 		// probe window size (if remote window size equals zero)
 		if (rmt_wnd == 0) {
@@ -332,113 +817,321 @@ public abstract class Kcp {
 
 		// flush window probing commands
 		if ((probe & IKCP_ASK_SEND) != 0) {
-			seg.cmd = IKCP_CMD_WASK;
-			if (pos > mss) {
-				output0(pos);
-				pos = 0;
-			}
-			encode_seg(pos, seg);
-			pos += IKCP_OVERHEAD;
+			pos = seg_room(pos, IKCP_CMD_WASK, 0, wnd);
+			pos = encode_seg(pos, IKCP_CMD_WASK, flags, wnd, 0, 0, rcv_nxt, 0);
+			if (recorder != null)
+				recorder.record(current, conv, KcpRecorder.EV_OUT, IKCP_CMD_WASK, 0, 0, rcv_nxt, wnd, rx_rto, 0, 0);
+			if (metrics != null)
+				metrics.probe(this, IKCP_CMD_WASK, false);
 		}
 
 		// flush window probing commands
 		if ((probe & IKCP_ASK_TELL) != 0) {
-			seg.cmd = IKCP_CMD_WINS;
-			if (pos > mss) {
-				output0(pos);
-				pos = 0;
-			}
-			encode_seg(pos, seg);
-			pos += IKCP_OVERHEAD;
+			pos = seg_room(pos, IKCP_CMD_WINS, 0, wnd);
+			pos = encode_seg(pos, IKCP_CMD_WINS, flags, wnd, 0, 0, rcv_nxt, 0);
+			if (recorder != null)
+				recorder.record(current, conv, KcpRecorder.EV_OUT, IKCP_CMD_WINS, 0, 0, rcv_nxt, wnd, rx_rto, 0, 0);
+			if (metrics != null)
+				metrics.probe(this, IKCP_CMD_WINS, false);
 		}
 		probe = 0;
 
 		// calculate window size
 		int cwnd = Math.min(snd_wnd, rmt_wnd);
-		if (!nocwnd && cwnd > this.cwnd)
-			cwnd = this.cwnd;
+		if (!nocwnd && cwnd > cc.cwnd())
+			cwnd = cc.cwnd();
+
+		// refill pacing tokens
+		final boolean paced = pacing > 0;
+		int pace_rate = 0; // bytes per millisec
+		if (paced) {
+			final int mtu = mss + IKCP_OVERHEAD;
+			final int rtt = rx_srtt > 0 ? rx_srtt : rx_rto; // rto before the first rtt sample
+			pace_rate = (int)Math.max((long)cwnd * mtu * pacing / (100L * Math.max(rtt, 1)), 1);
+			final int burst = Math.max(IKCP_PACE_BURST * mtu, pace_rate);
+			final int elapsed = Math.min(Math.max(current - pace_ts, 0), 1000);
+			pace_tokens = (int)Math.min(pace_tokens + (long)elapsed * pace_rate, burst);
+			if (pace_tokens < -burst)
+				pace_tokens = -burst;
+		}
+		pace_ts = current;
+		pace_wait = false;
+		pack_wait = false;
 
 		// move data from snd_queue to snd_buf
+		final int newsn = snd_nxt;
 		while (snd_nxt - (snd_una + cwnd) < 0) {
 			if (snd_queue.isEmpty())
 				break;
-			final KcpSeg newseg = snd_queue.next();
-			newseg.unlink();
-			newseg.linkTail(snd_buf);
+			if (coalesce > 0 && snd_queue.next() == snd_queue.prev()) { // hold the last packed segment for more
+				final KcpSeg seg = snd_queue.next();
+				if ((seg.frg & 0xff) == IKCP_FRG_PACKED && seg.len < mss && current - (seg.ts + coalesce) < 0) {
+					pack_wait = true;
+					pack_next = seg.ts + coalesce;
+					break;
+				}
+			}
+			if (snd_queue.next().len > mss && rmt_large <= 0) { // large message, held until the remote shows IKCP_LARGE_OK
+				if (rmt_large == 0)
+					break;
+				final KcpSeg seg = snd_queue.next(); // legacy remote, drop it like send returning -2
+				if (canlog(IKCP_LOG_OUTPUT))
+					log("drop large message len=%d", seg.len);
+				nsnd_que -= (seg.len + mss - 1) / mss;
+				seg.unlink();
+				free_seg(seg);
+				continue;
+			}
+			if (paced) {
+				final int size = Math.min(snd_queue.next().len, mss) + IKCP_OVERHEAD;
+				if (pace_tokens < size) {
+					pace_wait = true;
+					pace_next = current + Math.max((size - pace_tokens + pace_rate - 1) / pace_rate, 1);
+					break;
+				}
+				pace_tokens -= size;
+			}
+			KcpSeg newseg = snd_queue.next();
+			if (newseg.len > mss) { // large message, take a fragment, the rest stays in snd_queue
+				final KcpSeg p = newseg;
+				newseg = allocSeg(0);
+				newseg.ref = p.ref.retain();
+				newseg.off = p.off;
+				newseg.len = mss;
+				newseg.frg = (byte)IKCP_FRG_LARGE;
+				p.off += mss;
+				p.len -= mss;
+			} else
+				newseg.unlink();
+			if (snd_nxt - snd_una >= snd_buf.length)
+				snd_buf_grow();
+			final int i = snd_nxt & (snd_buf.length - 1);
+			snd_buf[i] = newseg;
 			newseg.cmd = IKCP_CMD_PUSH;
-			newseg.wnd = seg.wnd;
-			newseg.ts = current;
 			newseg.sn = snd_nxt++;
-			newseg.una = rcv_nxt;
-			newseg.resendts = current;
-			newseg.rto = rx_rto;
-			newseg.fastack = 0;
-			newseg.xmit = 0;
+			snd_ts[i] = current;
+			snd_resendts[i] = current;
+			snd_rto[i] = rx_rto;
+			snd_fastack[i] = 0;
+			snd_xmit[i] = 0;
 			nsnd_que--;
 			nsnd_buf++;
 		}
 
 		// flush data segments
+		final KcpMetrics metrics = this.metrics;
 		boolean change = false, lost = false;
-		for (KcpSeg p = snd_buf.next(); p != snd_buf; p = p.next()) {
-			boolean needsend = false;
-			if (p.xmit == 0) {
-				needsend = true;
-				p.xmit++;
-				p.rto = rx_rto;
-				p.resendts = current + rx_rto + (nodelay == 0 ? rx_rto >>> 3 : 0);
-			} else if (current - p.resendts >= 0) {
-				needsend = true;
-				p.xmit++;
-				if (nodelay == 0)
-					p.rto += Math.max(p.rto, rx_rto);
-				else
-					p.rto += (nodelay < 2 ? p.rto : rx_rto) / 2;
-				p.resendts = current + p.rto;
-				lost = true;
-			} else if (p.fastack >= (fastresend & 0x7fffffff) && p.xmit <= IKCP_FASTACK_LIMIT) {
-				needsend = true;
-				p.xmit++;
-				p.fastack = 0;
-				p.resendts = current + p.rto;
-				change = true;
-			}
-			if (needsend) {
-				p.ts = current;
-				p.wnd = seg.wnd;
-				p.una = rcv_nxt;
-				if (pos + p.len > mss) {
-					output0(pos);
-					pos = 0;
-				}
-				encode_seg(pos, p);
-				pos += IKCP_OVERHEAD;
-				if (p.len > 0) {
-					System.arraycopy(p.data, 0, buffer, pos, p.len);
-					pos += p.len;
-				}
+		final int[] xmit = snd_xmit, rto = snd_rto, resendts = snd_resendts, fastack = snd_fastack;
+		final int mask = snd_buf.length - 1;
+
+		// fast retransmit, only for segments collected by parse_fastack
+		final int[] fastlist = this.fastlist;
+		final int fastthresh = fastresend & 0x7fffffff;
+		int n = 0;
+		for (int k = 0, m = fastcount; k < m; k++) {
+			final int sn = fastlist[k];
+			if (sn - snd_una < 0 || sn - snd_nxt >= 0)
+				continue;
+			final int i = sn & mask;
+			if (snd_buf[i] == null || fastack[i] < fastthresh || xmit[i] > IKCP_FASTACK_LIMIT)
+				continue;
+			if (current - resendts[i] >= 0) { // timeout first, keep it for next flush
+				fastlist[n++] = sn;
+				continue;
 			}
+			xmit[i]++;
+			fastack[i] = 0;
+			resendts[i] = current + rto[i];
+			heap_down(snd_heappos[i]);
+			change = true;
+			pos = flush_seg(pos, i, wnd);
+			if (paced)
+				pace_tokens -= snd_buf[i].len + IKCP_OVERHEAD;
+			if (metrics != null)
+				metrics.resent(this, sn, snd_buf[i].len, xmit[i], true);
+		}
+		fastcount = n;
+
+		// timeout retransmit, every segment at most once
+		for (int k = nsnd_heap; k > 0; k--) {
+			final int i = snd_heap[0];
+			if (current - resendts[i] < 0)
+				break;
+			xmit[i]++;
+			if (nodelay == 0)
+				rto[i] += Math.max(rto[i], rx_rto);
+			else
+				rto[i] += (nodelay < 2 ? rto[i] : rx_rto) / 2;
+			resendts[i] = current + rto[i];
+			heap_down(0);
+			lost = true;
+			pos = flush_seg(pos, i, wnd);
+			if (paced)
+				pace_tokens -= snd_buf[i].len + IKCP_OVERHEAD;
+			if (metrics != null)
+				metrics.resent(this, snd_buf[i].sn, snd_buf[i].len, xmit[i], false);
+		}
+
+		// first transmit
+		for (int sn = newsn; sn != snd_nxt; sn++) {
+			final int i = sn & mask;
+			xmit[i]++;
+			rto[i] = rx_rto;
+			resendts[i] = current + rx_rto + (nodelay == 0 ? rx_rto >>> 3 : 0);
+			heap_push(i);
+			pos = flush_seg(pos, i, wnd);
+			if (metrics != null)
+				metrics.sent(this, sn, snd_buf[i].len);
 		}
 
 		// flush remain segments
 		if (pos > 0)
 			output0(pos);
 
-		// update ssthresh
-		if (lost) {
-			ssthresh = Math.max(cwnd / 2, IKCP_THRESH_MIN);
-			this.cwnd = 1;
-			incr = mss;
-			return;
+		// update congestion window
+		final int oldcwnd = cc.cwnd(), oldssthresh = cc.ssthresh();
+		if (lost)
+			cc.timeout(current, cwnd, snd_nxt - snd_una);
+		else if (change)
+			cc.fastResend(current, snd_nxt - snd_una, fastresend);
+		if (metrics != null) {
+			if (cc.cwnd() != oldcwnd || cc.ssthresh() != oldssthresh)
+				metrics.cwnd(this, cc.cwnd(), cc.ssthresh());
+			metrics.queues(this, nsnd_que, nsnd_buf, nrcv_que);
+		}
+	}
+
+	private int flush_sack(int pos, final byte flags, final short wnd) { // only for flush, acklist=>SACK segments
+		final int[] acklist = this.acklist;
+		final int count = ackcount;
+		for (int i = 1; i < count; i++) { // sort by sn, mostly in order already
+			final int sn = acklist[i * 2], ts = acklist[i * 2 + 1];
+			int j = i - 1;
+			for (; j >= 0 && acklist[j * 2] - sn > 0; j--) {
+				acklist[j * 2 + 2] = acklist[j * 2];
+				acklist[j * 2 + 3] = acklist[j * 2 + 1];
+			}
+			acklist[j * 2 + 2] = sn;
+			acklist[j * 2 + 3] = ts;
+		}
+		final ByteBuffer buf = outbuf;
+		final int range = cpkt ? 2 + 3 + 2 : IKCP_SACK_RANGE; // max, compact: sn(2) count(1~3) ts(2)
+		for (int i = 0; i < count; ) {
+			pos = seg_room(pos, IKCP_CMD_SACK, IKCP_SACK_RANGE, wnd);
+			final int head = pos, first = acklist[i * 2];
+			pos += cpkt ? 2 : IKCP_OVERHEAD; // compact: type(1) ranges(1)
+			int nrange = 0;
+			do {
+				final int sn = acklist[i * 2];
+				int ts = acklist[i * 2 + 1], n = 1;
+				for (i++; i < count && n < 0xffff; i++) { // merge continuous (or repeated) sn, keep the latest ts
+					final int d = acklist[i * 2] - sn;
+					if (d != n && d != n - 1)
+						break;
+					n = d + 1;
+					if (acklist[i * 2 + 1] - ts > 0)
+						ts = acklist[i * 2 + 1];
+				}
+				if (cpkt) {
+					buf.putShort(pos, (short)sn);
+					pos = putvarint(pos + 2, n);
+					buf.putShort(pos, (short)ts);
+					pos += 2;
+				} else {
+					buf.putInt(pos, sn);
+					buf.putShort(pos + 4, (short)n);
+					buf.putInt(pos + 6, ts);
+					pos += IKCP_SACK_RANGE;
+				}
+				nrange++;
+			} while (i < count && pos <= mss + IKCP_OVERHEAD - range && (!cpkt || nrange < 0xff));
+			final int size;
+			if (cpkt) {
+				size = pos - head - 2;
+				buf.put(head, (byte)((IKCP_CMD_SACK - IKCP_CMD_PUSH) | flags << 3));
+				buf.put(head + 1, (byte)nrange);
+			} else {
+				size = pos - head - IKCP_OVERHEAD;
+				encode_seg(head, IKCP_CMD_SACK, flags, wnd, 0, first, rcv_nxt, size);
+			}
+			if (recorder != null)
+				recorder.record(current, conv, KcpRecorder.EV_OUT, IKCP_CMD_SACK, first, 0, rcv_nxt, wnd, rx_rto, 0,
+						size);
+		}
+		return pos;
+	}
+
+	private int flush_seg(int pos, final int i, final short wnd) { // only for flush
+		final KcpSeg p = snd_buf[i];
+		snd_ts[i] = current;
+		pos = seg_room(pos, IKCP_CMD_PUSH, p.len, wnd);
+		pos = encode_seg(pos, IKCP_CMD_PUSH, p.frg, wnd, current, p.sn, rcv_nxt, p.len);
+		if (recorder != null)
+			recorder.record(current, conv, KcpRecorder.EV_OUT, IKCP_CMD_PUSH, p.sn, current, rcv_nxt, wnd, snd_rto[i],
+					snd_xmit[i], p.len);
+		if (p.len > 0) {
+			if (p.ref != null) {
+				if (buffer != null)
+					System.arraycopy(p.ref.data, p.off, buffer, pos, p.len);
+				else {
+					outbuf.position(pos);
+					outbuf.put(p.ref.data, p.off, p.len);
+				}
+			} else if (buffer != null)
+				p.get(0, buffer, pos, p.len);
+			else {
+				outbuf.position(pos);
+				p.get(0, outbuf, p.len);
+			}
+			pos += p.len;
+		}
+		return pos;
+	}
+
+	private void heap_set(final int k, final int i) {
+		snd_heap[k] = i;
+		snd_heappos[i] = k;
+	}
+
+	private void heap_up(int k) {
+		final int[] heap = snd_heap, resendts = snd_resendts;
+		final int i = heap[k], ts = resendts[i];
+		while (k > 0) {
+			final int parent = (k - 1) >> 1;
+			if (ts - resendts[heap[parent]] >= 0)
+				break;
+			heap_set(k, heap[parent]);
+			k = parent;
 		}
-		if (change) {
-			ssthresh = Math.max((snd_nxt - snd_una) / 2, IKCP_THRESH_MIN);
-			this.cwnd = Math.max(ssthresh + fastresend, 1);
-			incr = this.cwnd * mss;
-		} else if (this.cwnd < 1) {
-			this.cwnd = 1;
-			incr = mss;
+		heap_set(k, i);
+	}
+
+	private void heap_down(int k) {
+		final int[] heap = snd_heap, resendts = snd_resendts;
+		final int n = nsnd_heap, i = heap[k], ts = resendts[i];
+		for (int child; (child = k * 2 + 1) < n; k = child) {
+			if (child + 1 < n && resendts[heap[child + 1]] - resendts[heap[child]] < 0)
+				child++;
+			if (resendts[heap[child]] - ts >= 0)
+				break;
+			heap_set(k, heap[child]);
 		}
+		heap_set(k, i);
+	}
+
+	private void heap_push(final int i) { // only for flush
+		heap_set(nsnd_heap, i);
+		heap_up(nsnd_heap++);
+	}
+
+	private void heap_remove(final int i) { // only for input
+		final int k = snd_heappos[i];
+		final int last = snd_heap[--nsnd_heap];
+		if (k == nsnd_heap)
+			return;
+		heap_set(k, last);
+		heap_up(k);
+		heap_down(snd_heappos[last]);
 	}
 
 	private void update_ack(final int rtt) { // only for input
@@ -451,42 +1144,101 @@ public abstract class Kcp {
 		}
 		final int rto = rx_srtt + Math.max(interval, rx_rttval * 4);
 		rx_rto = Math.min(Math.max(rx_minrto, rto), IKCP_RTO_MAX);
+		cc.rtt(current, rtt);
+	}
+
+	private static int[] ring_grow(final int[] ring, final int from, final int to) {
+		final int mask = ring.length - 1;
+		final int[] newring = new int[ring.length * 2];
+		final int newmask = newring.length - 1;
+		for (int sn = from; sn != to; sn++)
+			newring[sn & newmask] = ring[sn & mask];
+		return newring;
+	}
+
+	private void snd_buf_grow() { // only for flush, keep [snd_una,snd_nxt) at the same sn
+		final KcpSeg[] ring = snd_buf;
+		final int mask = ring.length - 1;
+		final KcpSeg[] newring = new KcpSeg[ring.length * 2];
+		final int newmask = newring.length - 1;
+		for (int sn = snd_una; sn != snd_nxt; sn++)
+			newring[sn & newmask] = ring[sn & mask];
+		snd_buf = newring;
+		final int[] heap = snd_heap = Arrays.copyOf(snd_heap, newring.length);
+		for (int k = 0; k < nsnd_heap; k++)
+			heap[k] = ring[heap[k]].sn & newmask;
+		snd_heappos = ring_grow(snd_heappos, snd_una, snd_nxt);
+		snd_ts = ring_grow(snd_ts, snd_una, snd_nxt);
+		snd_resendts = ring_grow(snd_resendts, snd_una, snd_nxt);
+		snd_rto = ring_grow(snd_rto, snd_una, snd_nxt);
+		snd_fastack = ring_grow(snd_fastack, snd_una, snd_nxt);
+		snd_xmit = ring_grow(snd_xmit, snd_una, snd_nxt);
+	}
+
+	private void snd_buf_free(final int i) { // only for input
+		final KcpSeg p = snd_buf[i];
+		snd_buf[i] = null;
+		snd_xmit[i] = 0;
+		heap_remove(i);
+		free_seg(p);
+		nsnd_buf--;
 	}
 
 	private void shrink_buf() { // only for input
-		final KcpSeg p = snd_buf.next();
-		snd_una = p != snd_buf ? p.sn : snd_nxt;
+		final KcpSeg[] ring = snd_buf;
+		final int mask = ring.length - 1;
+		while (snd_una != snd_nxt && ring[snd_una & mask] == null)
+			snd_una++;
 	}
 
 	private void parse_ack(final int sn) { // uint32_t, only for input
 		if (sn - snd_una < 0 || sn - snd_nxt >= 0)
 			return;
-		for (KcpSeg p = snd_buf.next(); p != snd_buf && sn - p.sn >= 0; p = p.next()) {
-			if (sn == p.sn) {
-				p.unlink();
-				freeSeg(p);
-				nsnd_buf--;
-				break;
-			}
-		}
+		final int i = sn & (snd_buf.length - 1);
+		if (snd_buf[i] != null)
+			snd_buf_free(i);
+	}
+
+	private void parse_sack(int sn, final int n) { // uint32_t, only for input, ack [sn,sn+n)
+		int end = sn + n;
+		if (sn - snd_una < 0)
+			sn = snd_una;
+		if (end - snd_nxt > 0)
+			end = snd_nxt;
+		final int mask = snd_buf.length - 1;
+		for (; sn - end < 0; sn++)
+			if (snd_buf[sn & mask] != null)
+				snd_buf_free(sn & mask);
 	}
 
 	private void parse_una(final int una) { // uint32_t, only for input
-		for (KcpSeg p = snd_buf.next(); p != snd_buf && una - p.sn > 0; ) {
-			final KcpSeg next = p.next();
-			p.unlink();
-			freeSeg(p);
-			p = next;
-			nsnd_buf--;
-		}
+		final int mask = snd_buf.length - 1;
+		for (int sn = snd_una; sn != snd_nxt && una - sn > 0; sn++)
+			if (snd_buf[sn & mask] != null)
+				snd_buf_free(sn & mask);
 	}
 
-	private void parse_fastack(final int sn, final int ts) { // uint32_t, only for input
+	private void parse_fastack(final int sn, final int ts, final int n) { // uint32_t, only for input, n: count to add
 		if (sn - snd_una < 0 || sn - snd_nxt >= 0)
 			return;
-		for (KcpSeg p = snd_buf.next(); p != snd_buf && sn - p.sn >= 0; p = p.next())
-			if (sn != p.sn && (!IKCP_FASTACK_CONSERVE || ts - p.ts >= 0))
-				p.fastack++;
+		final KcpSeg[] ring = snd_buf;
+		final int mask = ring.length - 1;
+		final int fastthresh = fastresend & 0x7fffffff;
+		for (int s = snd_una; s != sn; s++) {
+			final int i = s & mask;
+			if (ring[i] != null && (!IKCP_FASTACK_CONSERVE || ts - snd_ts[i] >= 0)) {
+				final int f = snd_fastack[i];
+				snd_fastack[i] = f + n;
+				if (f < fastthresh && f + n >= fastthresh && snd_xmit[i] <= IKCP_FASTACK_LIMIT)
+					fastlist_push(s);
+			}
+		}
+	}
+
+	private void fastlist_push(final int sn) { // uint32_t, only for input
+		if (fastcount == fastlist.length)
+			fastlist = Arrays.copyOf(fastlist, fastcount * 2);
+		fastlist[fastcount++] = sn;
 	}
 
 	private void ack_push(final int sn, final int ts) { // uint32_t, only for input
@@ -509,26 +1261,58 @@ public abstract class Kcp {
 			return;
 		}
 
-		boolean repeat = false;
-		KcpSeg p = rcv_buf.prev();
-		for (; p != rcv_buf && sn - p.sn <= 0; p = p.prev()) {
-			if (p.sn == sn) {
-				repeat = true;
-				break;
-			}
-		}
-		if (repeat)
+		while (sn - (rcv_nxt - nrcv_que) >= rcv_buf.length) // rcv_wnd was enlarged
+			rcv_buf_grow();
+		final int i = sn & (rcv_buf.length - 1);
+		if (rcv_buf[i] != null) { // repeat
+			if (metrics != null)
+				metrics.duplicate(this, sn);
 			freeSeg(newseg);
-		else
-			newseg.linkNext(p);
+		} else {
+			rcv_buf[i] = newseg;
+			if (metrics != null)
+				metrics.received(this, sn, newseg.len);
+		}
+		rcv_buf_move();
+	}
+
+	private void rcv_buf_grow() { // only for input, keep [rcv_nxt-nrcv_que,) at the same sn
+		final KcpSeg[] ring = rcv_buf;
+		final int mask = ring.length - 1;
+		final KcpSeg[] newring = new KcpSeg[ring.length * 2];
+		final int newmask = newring.length - 1;
+		for (int sn = rcv_nxt - nrcv_que, end = sn + ring.length; sn != end; sn++)
+			newring[sn & newmask] = ring[sn & mask];
+		rcv_buf = newring;
+	}
 
+	private static boolean packed_ok(final byte[] buf, final ByteBuffer bbuf, int pos, final int size) { // framing
+		final int end = pos + size;
+		while (pos < end) {
+			final int n = getvarint(buf, bbuf, pos, end);
+			if (n < 0)
+				return false;
+			pos += varint_size(n) + n;
+		}
+		return size > 0 && pos == end;
+	}
+
+	private static int packed_len(final KcpSeg p, int off) { // message length at 'off' of a packed segment
+		int v = 0;
+		for (int shift = 0; ; shift += 7) {
+			final int b = p.get(off++) & 0xff;
+			v |= (b & 0x7f) << shift;
+			if (b < 0x80)
+				return v;
+		}
+	}
+
+	private void rcv_buf_move() { // input, recv
 		// move available data from rcv_buf -> rcv_queue
-		while (!rcv_buf.isEmpty()) {
-			final KcpSeg seg = rcv_buf.next();
-			if (seg.sn != rcv_nxt || nrcv_que >= rcv_wnd)
-				break;
-			seg.unlink();
-			seg.linkTail(rcv_queue);
+		final KcpSeg[] ring = rcv_buf;
+		final int mask = ring.length - 1;
+		final int n = Math.min(rcv_wnd, ring.length); // slots beyond ring length alias the queue, parse_data grows it
+		while (nrcv_que < n && ring[rcv_nxt & mask] != null) {
 			nrcv_que++;
 			rcv_nxt++;
 		}
@@ -537,37 +1321,246 @@ public abstract class Kcp {
 	/**
 	 * when you received a low level packet (eg. UDP packet), call it
 	 */
-	public final int input(final byte[] buf, int pos, int len) {
+	public final int input(final byte[] buf, final int pos, final int len) {
+		input_begin();
+		final int r = input1(buf, pos, len);
+		if (r == 0)
+			input_end(-1);
+		return r;
+	}
+
+	/**
+	 * same as input(byte[],int,int) for the remaining bytes of 'buf' (heap or direct), position is moved to limit
+	 */
+	public final int input(final ByteBuffer buf) {
+		input_begin();
+		final int r = input1(buf);
+		if (r == 0)
+			input_end(-1);
+		return r;
+	}
+
+	/**
+	 * batched input of bufs[0,n) from offs[0,n) (null for all 0) with length lens[0,n) (eg. drained from a socket in
+	 * one wakeup): all are parsed into the windows first, then fast resend counting and the congestion window are
+	 * updated once for the whole batch. 'status' (can be null) gets the result of each like input(byte[],int,int).
+	 * returns the count of accepted ones
+	 */
+	public final int input(final byte[][] bufs, final int[] offs, final int[] lens, final int n, final int[] status) {
+		input_begin();
+		int ok = 0, packets = 0;
+		for (int i = 0; i < n; i++) {
+			final int una = snd_una;
+			final int r = input1(bufs[i], offs != null ? offs[i] : 0, lens[i]);
+			if (status != null)
+				status[i] = r;
+			if (r == 0)
+				ok++;
+			if (snd_una != una)
+				packets++;
+		}
+		input_end(packets);
+		return ok;
+	}
+
+	/**
+	 * same as input(byte[][],int[],int[],int,int[]) for the remaining bytes of bufs[off,off+n) (heap or direct),
+	 * positions are moved to limits
+	 */
+	public final int input(final ByteBuffer[] bufs, final int off, final int n, final int[] status) {
+		input_begin();
+		int ok = 0, packets = 0;
+		for (int i = 0; i < n; i++) {
+			final ByteBuffer buf = bufs[off + i];
+			final int una = snd_una;
+			final int r = buf != null ? input1(buf) : -1;
+			if (status != null)
+				status[i] = r;
+			if (r == 0)
+				ok++;
+			if (snd_una != una)
+				packets++;
+		}
+		input_end(packets);
+		return ok;
+	}
+
+	private void input_begin() {
+		in_una = snd_una;
+		in_nsnd_buf = nsnd_buf;
+		in_acks = 0;
+	}
+
+	private void input_end(final int packets) { // packets: inputs advanced snd_una in the batch, -1 for single input
+		if (in_acks > 0) {
+			// below the min of the packets' max ack: in_acks, the same count as inputs one by one.
+			// in [min,max): only 1, one by one would count every packet acking beyond it, so fast resend of
+			// these may take one more batch (an ack is only kept here as max or min, not per packet)
+			if (in_acks > 1 && in_minack != in_maxack)
+				parse_fastack(in_minack, in_mints, in_acks - 1);
+			parse_fastack(in_maxack, in_maxts, in_acks > 1 && in_minack == in_maxack ? in_acks : 1);
+		}
+		if (in_nsnd_buf != nsnd_buf) {
+			final int oldcwnd = cc.cwnd(), oldssthresh = cc.ssthresh();
+			if (packets < 0)
+				cc.acked(current, snd_una - in_una, in_nsnd_buf - nsnd_buf, snd_nxt - snd_una, rmt_wnd);
+			else
+				cc.ackedBatch(current, snd_una - in_una, in_nsnd_buf - nsnd_buf, snd_nxt - snd_una, rmt_wnd, packets);
+			if (metrics != null && (cc.cwnd() != oldcwnd || cc.ssthresh() != oldssthresh))
+				metrics.cwnd(this, cc.cwnd(), cc.ssthresh());
+		}
+	}
+
+	private int input1(final byte[] buf, final int pos, final int len) {
 		if (canlog(IKCP_LOG_INPUT))
 			log("[RI] %d bytes", len);
-		if (buf == null || len < IKCP_OVERHEAD)
+		if (buf == null || len < IKCP_PACKET_MIN)
 			return -1;
+		return input0(buf, null, pos, len);
+	}
 
-		int prev_una = snd_una, maxack = 0, latest_ts = 0;
+	private int input1(final ByteBuffer buf) {
+		final int len = buf.remaining();
+		if (canlog(IKCP_LOG_INPUT))
+			log("[RI] %d bytes", len);
+		if (len < IKCP_PACKET_MIN)
+			return -1;
+		final ByteOrder order = buf.order();
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		final int r = input0(null, buf, buf.position(), len);
+		buf.order(order);
+		buf.position(buf.limit());
+		return r;
+	}
+
+	private int input0(final byte[] buf, final ByteBuffer bbuf, int pos, int len) { // bbuf is little endian
+		int maxack = 0, latest_ts = 0;
 		boolean flag = false;
-		while (len >= IKCP_OVERHEAD) {
-			if (decode32u(buf, pos) != conv)
+		final boolean cpkt = get8u(buf, bbuf, pos + 4) == IKCP_CMD_COMPACT;
+		int cwnd = 0, cuna = 0, cts = 0; // compact packet: wnd, una and ts of PUSH shared by segments
+		if (cpkt) {
+			if (get32u(buf, bbuf, pos) != conv)
 				return -2;
-			final int cmd = decode8u(buf, pos + 4);
-			final int frg = decode8u(buf, pos + 5);
-			final int wnd = decode16u(buf, pos + 6);
-			final int ts = decode32u(buf, pos + 8);
-			final int sn = decode32u(buf, pos + 12);
-			final int una = decode32u(buf, pos + 16);
-			final int size = decode32u(buf, pos + 20);
-			pos += IKCP_OVERHEAD;
-			len -= IKCP_OVERHEAD;
+			cwnd = get16u(buf, bbuf, pos + 5);
+			cuna = snd_una + (short)(get16u(buf, bbuf, pos + 7) - snd_una); // nearest to snd_una
+			pos += IKCP_COMPACT_HEAD;
+			len -= IKCP_COMPACT_HEAD;
+			rmt_compact = 1;
+		} else if (len < IKCP_OVERHEAD)
+			return -1;
+		while (len >= (cpkt ? 1 : IKCP_OVERHEAD)) {
+			final int cmd, frg, wnd, ts, sn, una, size;
+			int head = IKCP_OVERHEAD;
+			if (cpkt) {
+				final int type = get8u(buf, bbuf, pos), end = pos + len;
+				cmd = IKCP_CMD_PUSH + (type & 7);
+				wnd = cwnd;
+				una = cuna;
+				if (cmd == IKCP_CMD_PUSH) {
+					int p = pos + 1;
+					if (len < 4 + ((type & 0x8) != 0 ? 1 : 0) + ((type & 0x10) != 0 ? 4 : 0))
+						return -3;
+					frg = (type & 0x8) != 0 ? get8u(buf, bbuf, p++) : 0;
+					if ((type & 0x10) != 0) {
+						cts = get32u(buf, bbuf, p);
+						p += 4;
+					}
+					ts = cts;
+					sn = rcv_nxt + (short)(get16u(buf, bbuf, p) - rcv_nxt); // nearest to rcv_nxt
+					size = getvarint(buf, bbuf, p + 2, end);
+					head = p + 2 + varint_size(size) - pos;
+				} else if (cmd == IKCP_CMD_ACK) {
+					if (len < 5)
+						return -3;
+					frg = type >>> 3;
+					sn = snd_una + (short)(get16u(buf, bbuf, pos + 1) - snd_una);
+					ts = current - ((current - get16u(buf, bbuf, pos + 3)) & 0xffff); // echoed, not later than current
+					size = 0;
+					head = 5;
+				} else if (cmd == IKCP_CMD_SACK) { // ranges are parsed later, only the size here
+					if (len < 2)
+						return -3;
+					frg = type >>> 3;
+					ts = 0;
+					int p = pos + 2;
+					for (int i = get8u(buf, bbuf, pos + 1); i > 0 && p >= 0; i--) {
+						final int n = p + 2 < end ? getvarint(buf, bbuf, p + 2, end) : -1;
+						p = n >= 0 ? p + 2 + varint_size(n) + 2 : -1;
+					}
+					if (p < 0 || p > end)
+						return -3;
+					sn = p > pos + 2 ? snd_una + (short)(get16u(buf, bbuf, pos + 2) - snd_una) : 0;
+					size = p - pos - 2;
+					head = 2;
+				} else {
+					frg = type >>> 3;
+					ts = sn = size = 0;
+					head = 1;
+				}
+			} else if (buf != null) {
+				if (decode32u(buf, pos) != conv)
+					return -2;
+				cmd = decode8u(buf, pos + 4);
+				frg = decode8u(buf, pos + 5);
+				wnd = decode16u(buf, pos + 6);
+				ts = decode32u(buf, pos + 8);
+				sn = decode32u(buf, pos + 12);
+				una = decode32u(buf, pos + 16);
+				size = decode32u(buf, pos + 20);
+			} else {
+				if (bbuf.getInt(pos) != conv)
+					return -2;
+				cmd = bbuf.get(pos + 4) & 0xff;
+				frg = bbuf.get(pos + 5) & 0xff;
+				wnd = bbuf.getShort(pos + 6) & 0xffff;
+				ts = bbuf.getInt(pos + 8);
+				sn = bbuf.getInt(pos + 12);
+				una = bbuf.getInt(pos + 16);
+				size = bbuf.getInt(pos + 20);
+			}
+			pos += head;
+			len -= head;
 			if (len < size || size < 0)
 				return -3;
-			if (cmd != IKCP_CMD_PUSH && cmd != IKCP_CMD_ACK && cmd != IKCP_CMD_WASK && cmd != IKCP_CMD_WINS)
+			if (cmd != IKCP_CMD_PUSH && cmd != IKCP_CMD_ACK && cmd != IKCP_CMD_WASK && cmd != IKCP_CMD_WINS
+					&& cmd != IKCP_CMD_SACK)
 				return -4;
+			if (recorder != null)
+				recorder.record(current, conv, KcpRecorder.EV_IN, cmd, sn, ts, una, wnd, rx_rto, 0, size);
 
 			rmt_wnd = wnd;
 			parse_una(una);
 			shrink_buf();
+			if (sack && cmd != IKCP_CMD_PUSH) {
+				if ((frg & IKCP_SACK_OK) != 0)
+					rmt_sack = 1;
+				else if (rmt_sack == 0 && cmd == IKCP_CMD_ACK)
+					rmt_sack = -1;
+			}
+			if (compact && cmd != IKCP_CMD_PUSH && !cpkt) {
+				if ((frg & IKCP_COMPACT_OK) != 0)
+					rmt_compact = 1;
+				else if (rmt_compact == 0 && cmd == IKCP_CMD_ACK)
+					rmt_compact = -1;
+			}
+			if (coalesce >= 0 && cmd != IKCP_CMD_PUSH) {
+				if ((frg & IKCP_PACK_OK) != 0)
+					rmt_pack = 1;
+				else if (rmt_pack == 0 && cmd == IKCP_CMD_ACK)
+					rmt_pack = -1;
+			}
+			if (large && cmd != IKCP_CMD_PUSH) {
+				if ((frg & IKCP_LARGE_OK) != 0)
+					rmt_large = 1;
+				else if (rmt_large == 0 && (cmd == IKCP_CMD_ACK || cmd == IKCP_CMD_WINS))
+					rmt_large = -1;
+			}
 			if (cmd == IKCP_CMD_ACK) {
-				if (current - ts >= 0)
+				if (current - ts >= 0) {
 					update_ack(current - ts);
+					if (metrics != null)
+						metrics.rtt(this, current - ts, rx_srtt, rx_rttval, rx_rto);
+				}
 				parse_ack(sn);
 				shrink_buf();
 				if (!flag) {
@@ -580,12 +1573,53 @@ public abstract class Kcp {
 				}
 				if (canlog(IKCP_LOG_IN_ACK))
 					log("input ack: sn=%d rtt=%d rto=%d", sn, current - ts, rx_rto);
+			} else if (cmd == IKCP_CMD_SACK) {
+				for (int p = pos, end = pos + size - (cpkt ? 5 : IKCP_SACK_RANGE); p <= end; ) {
+					final int rsn, rn, rts;
+					if (cpkt) { // checked above
+						rsn = snd_una + (short)(get16u(buf, bbuf, p) - snd_una);
+						rn = getvarint(buf, bbuf, p + 2, pos + size);
+						p += 2 + varint_size(rn);
+						rts = current - ((current - get16u(buf, bbuf, p)) & 0xffff);
+						p += 2;
+					} else if (buf != null) {
+						rsn = decode32u(buf, p);
+						rn = decode16u(buf, p + 4);
+						rts = decode32u(buf, p + 6);
+						p += IKCP_SACK_RANGE;
+					} else {
+						rsn = bbuf.getInt(p);
+						rn = bbuf.getShort(p + 4) & 0xffff;
+						rts = bbuf.getInt(p + 6);
+						p += IKCP_SACK_RANGE;
+					}
+					if (current - rts >= 0) {
+						update_ack(current - rts);
+						if (metrics != null)
+							metrics.rtt(this, current - rts, rx_srtt, rx_rttval, rx_rto);
+					}
+					parse_sack(rsn, rn);
+					final int last = rsn + rn - 1;
+					if (rn > 0 && (!flag || last - maxack > 0 && (!IKCP_FASTACK_CONSERVE || rts - latest_ts > 0))) {
+						flag = true;
+						maxack = last;
+						latest_ts = rts;
+					}
+					if (canlog(IKCP_LOG_IN_ACK))
+						log("input sack: sn=%d n=%d rtt=%d rto=%d", rsn, rn, current - rts, rx_rto);
+				}
+				shrink_buf();
 			} else if (cmd == IKCP_CMD_PUSH) {
 				if (canlog(IKCP_LOG_IN_DATA))
 					log("input psh: sn=%d ts=%d", sn, ts);
+				if (frg == IKCP_FRG_PACKED && !packed_ok(buf, bbuf, pos, size))
+					return -3;
 				if (sn - (rcv_nxt + rcv_wnd) < 0) {
 					ack_push(sn, ts);
-					if (sn - rcv_nxt >= 0) {
+					if (sn - rcv_nxt < 0) {
+						if (metrics != null)
+							metrics.duplicate(this, sn);
+					} else {
 						final KcpSeg seg = allocSeg(size);
 						seg.cmd = (byte)cmd;
 						seg.frg = (byte)frg;
@@ -594,39 +1628,43 @@ public abstract class Kcp {
 						seg.sn = sn;
 						seg.una = una;
 						seg.len = size;
-						if (size > 0)
-							System.arraycopy(buf, pos, seg.data, 0, size);
+						if (size > 0) {
+							if (buf != null)
+								seg.put(0, buf, pos, size);
+							else {
+								bbuf.position(pos);
+								seg.put(0, bbuf, size);
+							}
+						}
 						parse_data(seg);
 					}
-				}
+				} else if (metrics != null)
+					metrics.outOfWindow(this, sn);
 			} else if (cmd == IKCP_CMD_WASK) {
 				probe |= IKCP_ASK_TELL; // ready to send back IKCP_CMD_WINS in 'flush', tell remote my window size
 				if (canlog(IKCP_LOG_IN_PROBE))
 					log("input probe");
-			} else if (canlog(IKCP_LOG_IN_WINS))
-				log("input wins: %d", wnd);
+				if (metrics != null)
+					metrics.probe(this, IKCP_CMD_WASK, true);
+			} else {
+				if (canlog(IKCP_LOG_IN_WINS))
+					log("input wins: %d", wnd);
+				if (metrics != null)
+					metrics.probe(this, IKCP_CMD_WINS, true);
+			}
 			pos += size;
 			len -= size;
 		}
-		if (flag)
-			parse_fastack(maxack, latest_ts);
-		if (snd_una - prev_una > 0) {
-			if (cwnd < rmt_wnd) {
-				final int mss = this.mss;
-				if (cwnd < ssthresh) {
-					cwnd++;
-					incr += mss;
-				} else {
-					if (incr < mss)
-						incr = mss;
-					incr += mss * mss / incr + mss / 16;
-					if ((cwnd + 1) * mss <= incr)
-						cwnd = (incr + mss - 1) / mss;
-				}
-				if (cwnd > rmt_wnd) {
-					cwnd = rmt_wnd;
-					incr = rmt_wnd * mss;
-				}
+		if (flag) {
+			if (in_acks++ == 0) {
+				in_maxack = in_minack = maxack;
+				in_maxts = in_mints = latest_ts;
+			} else if (maxack - in_maxack > 0 && (!IKCP_FASTACK_CONSERVE || latest_ts - in_maxts > 0)) {
+				in_maxack = maxack;
+				in_maxts = latest_ts;
+			} else if (maxack - in_minack < 0) {
+				in_minack = maxack;
+				in_mints = latest_ts;
 			}
 		}
 		return 0;
@@ -636,25 +1674,194 @@ public abstract class Kcp {
 	 * check the size of next message in the recv queue
 	 */
 	public final int peeksize() { // const, rcv_queue=>size
-		if (rcv_queue.isEmpty())
+		if (nrcv_que == 0)
 			return -1;
-		KcpSeg p = rcv_queue.next();
+		final KcpSeg[] ring = rcv_buf;
+		final int mask = ring.length - 1;
+		int sn = rcv_nxt - nrcv_que;
+		KcpSeg p = ring[sn & mask];
 		if (p.frg == 0)
-			return p.len;
-		if (nrcv_que < (p.frg & 0xff) + 1)
+			return p.len - rcv_packoff;
+		if ((p.frg & 0xff) == IKCP_FRG_PACKED)
+			return packed_len(p, rcv_packoff);
+		final boolean large = (p.frg & 0xff) == IKCP_FRG_LARGE; // unknown count
+		if (!large && nrcv_que < (p.frg & 0xff) + 1)
 			return -2;
-		for (int len = 0; p != rcv_queue; p = p.next()) {
+		for (int len = 0; sn != rcv_nxt; p = ring[++sn & mask]) {
 			len += p.len;
 			if (p.frg == 0)
 				return len;
 		}
-		return -3;
+		return large ? -2 : -3;
+	}
+
+	/**
+	 * user/upper level recv: returns size, returns below zero for EAGAIN.
+	 * in streaming mode it reads like TCP: up to 'len' bytes across segments, the rest of a segment is kept for next recv
+	 */
+	public final int recv(final byte[] buf, final int pos, final int len) { // rcv_queue=>buf, rcv_buf=>rcv_queue
+		return recv0(buf, null, null, pos, len);
+	}
+
+	/**
+	 * same as recv(byte[],int,int) into the remaining space of 'buf' (heap or direct), position is advanced by size
+	 */
+	public final int recv(final ByteBuffer buf) {
+		return recv0(null, buf, null, 0, buf.remaining());
+	}
+
+	/**
+	 * user/upper level recv without copy: move the segments of next message into 'msg' (released first if not empty).
+	 * returns size, returns below zero for EAGAIN. the segments return to 'freeSeg' by msg.release()
+	 * in streaming mode one segment is moved (the rest of a partially read one is copied)
+	 */
+	public final int recv(final KcpMsg msg) {
+		msg.release();
+		return recv0(null, null, msg, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * user/upper level recv of the next part of a message, without waiting for the rest (eg. IKCP_FRG_LARGE beyond the
+	 * receive window): as many queued segments as fit 'len', then chunkEnd() tells if the message is complete.
+	 * a whole message larger than 'len' is cut at segments the same way, one fitting 'len' is read like recv.
+	 * returns size, returns below zero for EAGAIN (-4: 'len' is less than the next segment)
+	 */
+	public final int recvChunk(final byte[] buf, final int pos, final int len) {
+		return recv_chunk(buf, null, null, pos, len);
+	}
+
+	/**
+	 * same as recvChunk(byte[],int,int) into the remaining space of 'buf' (heap or direct), position is advanced by size
+	 */
+	public final int recvChunk(final ByteBuffer buf) {
+		return recv_chunk(null, buf, null, 0, buf.remaining());
 	}
 
 	/**
-	 * user/upper level recv: returns size, returns below zero for EAGAIN
+	 * same as recvChunk(byte[],int,int) without copy like recv(KcpMsg)
 	 */
-	public final int recv(final byte[] buf, int pos, int len) { // rcv_queue=>buf, rcv_buf=>rcv_queue
+	public final int recvChunk(final KcpMsg msg) {
+		msg.release();
+		return recv_chunk(null, null, msg, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * whether the last successful recvChunk completed a message (always true after recv)
+	 */
+	public final boolean chunkEnd() { // const
+		return chunk_end;
+	}
+
+	private int recv_chunk(final byte[] buf, final ByteBuffer bbuf, final KcpMsg msg, int pos, final int len) {
+		if (nrcv_que == 0)
+			return -1;
+		final KcpSeg[] ring = rcv_buf;
+		final int mask = ring.length - 1;
+		final int nrcv_que0 = nrcv_que, sn0 = rcv_nxt - nrcv_que;
+		final int frg = ring[sn0 & mask].frg & 0xff;
+		if (stream || frg == IKCP_FRG_PACKED || frg != IKCP_FRG_LARGE && peeksize() <= len) // fits, or not complete
+			return recv0(buf, bbuf, msg, pos, len);
+		final boolean recover = nrcv_que >= rcv_wnd;
+		int size = 0;
+		boolean end = false;
+		for (int sn = sn0; sn != rcv_nxt && !end; sn++) {
+			final KcpSeg p = ring[sn & mask];
+			if (p.len > len - size)
+				break;
+			if (buf != null) {
+				p.get(0, buf, pos, p.len);
+				pos += p.len;
+			} else if (bbuf != null)
+				p.get(0, bbuf, p.len);
+			size += p.len;
+			if (canlog(IKCP_LOG_RECV))
+				log("recv sn=%d", p.sn);
+			end = p.frg == 0;
+			ring[sn & mask] = null;
+			if (msg != null)
+				msg.add(this, p);
+			else
+				freeSeg(p);
+			nrcv_que--;
+		}
+		if (nrcv_que == nrcv_que0)
+			return -4;
+		chunk_end = end;
+		if (metrics != null)
+			metrics.delivered(this, size, nrcv_que0 - nrcv_que);
+		if (recorder != null)
+			recorder.record(current, conv, KcpRecorder.EV_RECV, IKCP_CMD_PUSH, sn0, 0, rcv_nxt, rcv_wnd - nrcv_que,
+					rx_rto, 0, size);
+		rcv_buf_move();
+
+		// fast recover
+		if (nrcv_que < rcv_wnd && recover)
+			probe |= IKCP_ASK_TELL; // ready to send back IKCP_CMD_WINS in 'flush', tell remote my window size
+		return size;
+	}
+
+	private int recv_stream(final byte[] buf, final ByteBuffer bbuf, final KcpMsg msg, int pos, int len) {
+		if (nrcv_que == 0)
+			return -1;
+		final boolean ispeek = len < 0;
+		if (ispeek)
+			len = -len;
+		final boolean recover = nrcv_que >= rcv_wnd;
+		final int nrcv_que0 = nrcv_que, sn0 = rcv_nxt - nrcv_que;
+		final KcpSeg[] ring = rcv_buf;
+		final int mask = ring.length - 1;
+		int size = 0, off = rcv_packoff;
+		for (int sn = sn0; sn != rcv_nxt && size < len && (msg == null || sn == sn0); sn++, off = 0) {
+			KcpSeg p = ring[sn & mask];
+			final int n = Math.min(p.len - off, len - size);
+			if (buf != null) {
+				p.get(off, buf, pos, n);
+				pos += n;
+			} else if (bbuf != null)
+				p.get(off, bbuf, n);
+			size += n;
+			if ((off += n) < p.len)
+				break; // the rest stays at the head
+			if (canlog(IKCP_LOG_RECV))
+				log("recv sn=%d", p.sn);
+			if (!ispeek) {
+				ring[sn & mask] = null;
+				if (msg != null) {
+					if (n < p.len) { // partially read before, copy the rest
+						final KcpSeg seg = allocSeg(n);
+						seg.put(0, p, p.len - n, n);
+						seg.len = n;
+						seg.frg = 0;
+						seg.sn = sn;
+						freeSeg(p);
+						p = seg;
+					}
+					msg.add(this, p);
+				} else
+					freeSeg(p);
+				nrcv_que--;
+			}
+		}
+		if (ispeek)
+			return size;
+		rcv_packoff = off;
+		chunk_end = true;
+		if (metrics != null)
+			metrics.delivered(this, size, nrcv_que0 - nrcv_que);
+		if (recorder != null)
+			recorder.record(current, conv, KcpRecorder.EV_RECV, IKCP_CMD_PUSH, sn0, 0, rcv_nxt, rcv_wnd - nrcv_que,
+					rx_rto, 0, size);
+		rcv_buf_move();
+
+		// fast recover
+		if (nrcv_que < rcv_wnd && recover)
+			probe |= IKCP_ASK_TELL; // ready to send back IKCP_CMD_WINS in 'flush', tell remote my window size
+		return size;
+	}
+
+	private int recv0(final byte[] buf, final ByteBuffer bbuf, final KcpMsg msg, int pos, int len) {
+		if (stream)
+			return recv_stream(buf, bbuf, msg, pos, len);
 		final int peeksize = peeksize();
 		if (peeksize < 0)
 			return peeksize;
@@ -666,37 +1873,68 @@ public abstract class Kcp {
 
 		// merge fragment
 		final boolean recover = nrcv_que >= rcv_wnd;
+		final int nrcv_que0 = nrcv_que, sn0 = rcv_nxt - nrcv_que;
 		len = 0;
-		for (KcpSeg p = rcv_queue.next(); p != rcv_queue; ) {
+		final KcpSeg[] ring = rcv_buf;
+		final int mask = ring.length - 1;
+		for (int sn = rcv_nxt - nrcv_que; sn != rcv_nxt; sn++) {
+			final KcpSeg p = ring[sn & mask];
+			if ((p.frg & 0xff) == IKCP_FRG_PACKED) { // one message of the packed segment
+				final int off = rcv_packoff + varint_size(peeksize);
+				if (buf != null)
+					p.get(off, buf, pos, peeksize);
+				else if (bbuf != null)
+					p.get(off, bbuf, peeksize);
+				len = peeksize;
+				if (!ispeek) {
+					if (msg != null) { // copied, the segment holds other messages
+						final KcpSeg seg = allocSeg(peeksize);
+						seg.put(0, p, off, peeksize);
+						seg.len = peeksize;
+						seg.frg = 0;
+						seg.sn = sn;
+						msg.add(this, seg);
+					}
+					rcv_packoff = off + peeksize;
+					if (rcv_packoff >= p.len) {
+						rcv_packoff = 0;
+						ring[sn & mask] = null;
+						freeSeg(p);
+						nrcv_que--;
+					}
+				}
+				break;
+			}
 			if (buf != null) {
-				System.arraycopy(p.data, 0, buf, pos, p.len);
+				p.get(0, buf, pos, p.len);
 				pos += p.len;
-			}
+			} else if (bbuf != null)
+				p.get(0, bbuf, p.len);
 			len += p.len;
 			if (canlog(IKCP_LOG_RECV))
 				log("recv sn=%d", p.sn);
 			final byte frg = p.frg;
-			final KcpSeg next = p.next();
 			if (!ispeek) {
-				p.unlink();
-				freeSeg(p);
+				ring[sn & mask] = null;
+				if (msg != null)
+					msg.add(this, p);
+				else
+					freeSeg(p);
 				nrcv_que--;
 			}
-			p = next;
 			if (frg == 0)
 				break;
 		}
 
-		// move available data from rcv_buf -> rcv_queue
-		while (!rcv_buf.isEmpty()) {
-			final KcpSeg seg = rcv_buf.next();
-			if (seg.sn != rcv_nxt || nrcv_que >= rcv_wnd)
-				break;
-			seg.unlink();
-			seg.linkTail(rcv_queue);
-			nrcv_que++;
-			rcv_nxt++;
+		if (!ispeek) {
+			chunk_end = true;
+			if (metrics != null)
+				metrics.delivered(this, len, nrcv_que0 - nrcv_que);
+			if (recorder != null)
+				recorder.record(current, conv, KcpRecorder.EV_RECV, IKCP_CMD_PUSH, sn0, 0, rcv_nxt,
+						rcv_wnd - nrcv_que, rx_rto, 0, len);
 		}
+		rcv_buf_move();
 
 		// fast recover
 		if (nrcv_que < rcv_wnd && recover)
@@ -718,12 +1956,22 @@ public abstract class Kcp {
 		if (tm_flush <= 0 || tm_flush > 10000)
 			return current;
 		int tm_packet = Integer.MAX_VALUE;
-		for (KcpSeg p = snd_buf.next(); p != snd_buf; p = p.next()) {
-			final int diff = p.resendts - current;
-			if (diff <= 0)
+		if (nsnd_heap > 0) {
+			tm_packet = snd_resendts[snd_heap[0]] - current;
+			if (tm_packet <= 0)
 				return current;
-			if (tm_packet > diff)
-				tm_packet = diff;
+		}
+		if (pace_wait) {
+			final int tm_pace = pace_next - current;
+			if (tm_pace <= 0)
+				return current;
+			tm_packet = Math.min(tm_packet, tm_pace);
+		}
+		if (pack_wait) {
+			final int tm_pack = pack_next - current;
+			if (tm_pack <= 0)
+				return current;
+			tm_packet = Math.min(tm_packet, tm_pack);
 		}
 		return current + Math.min(Math.min(tm_packet, tm_flush), interval);
 	}
@@ -739,7 +1987,7 @@ public abstract class Kcp {
 			ts_flush = current + interval;
 		else if (slap >= 0)
 			ts_flush += interval;
-		else {
+		else if ((!pace_wait || current - pace_next < 0) && (!pack_wait || current - pack_next < 0)) {
 			this.current = current;
 			return;
 		}
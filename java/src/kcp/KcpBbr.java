@@ -0,0 +1,154 @@
+package kcp;
+
+/**
+ * BBR-style congestion control driven by delivery rate and min rtt instead of loss, for long fat and lossy links.
+ * <li>delivery rate is sampled once per round (min rtt), the bottleneck bandwidth is the max of the last 10 rounds.
+ * <li>STARTUP grows exponentially until bandwidth stops growing by 25% for 3 rounds, DRAIN drops to one BDP, then
+ * PROBE_BW cycles the window over 2*BDP*[1.25,0.75,1,1,1,1,1,1]; PROBE_RTT drops to 4 segments for 200ms every 10s.
+ * <li>it sets cwnd only, fast resend does not shrink the window, timeout falls back to one BDP. with Kcp.pacing at
+ * 100/CWND_GAIN (50) the token rate (cwnd/srtt) is about cycle gain * bandwidth, as the pacing rate of BBR.
+ */
+public class KcpBbr extends KcpCongestion {
+	public static final double STARTUP_GAIN = 2.89; // 2/ln2
+	public static final double CWND_GAIN = 2;
+	public static final int BW_ROUNDS = 10;
+	public static final int MIN_RTT_WIN = 10000; // millisec
+	public static final int PROBE_RTT_TIME = 200; // millisec
+	public static final int MIN_CWND = 4;
+	private static final double[] CYCLE_GAINS = {1.25, 0.75, 1, 1, 1, 1, 1, 1};
+	private static final int STARTUP = 0;
+	private static final int DRAIN = 1;
+	private static final int PROBE_BW = 2;
+	private static final int PROBE_RTT = 3;
+	private final double[] bws = new double[BW_ROUNDS]; // delivery rate samples in segments per millisec
+	private double bw;           // max of bws
+	private double full_bw;
+	private int full_bw_count;
+	private long delivered;      // segments
+	private long round_delivered;
+	private int round_start;     // uint32_t
+	private int round_count;
+	private int min_rtt;         // millisec, 0 for no sample
+	private int min_rtt_ts;      // uint32_t
+	private boolean min_rtt_expired;
+	private int mode;
+	private int cycle;
+	private int probe_rtt_done;  // uint32_t
+	private int prior_cwnd;
+
+	@Override
+	public void init(final int mss, final int current) {
+		super.init(mss, current);
+		for (int i = 0; i < BW_ROUNDS; i++)
+			bws[i] = 0;
+		bw = full_bw = 0;
+		full_bw_count = 0;
+		delivered = round_delivered = 0;
+		round_start = current;
+		round_count = 0;
+		min_rtt = 0;
+		min_rtt_expired = false;
+		mode = STARTUP;
+		cycle = 0;
+		ssthresh = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * bottleneck bandwidth estimate in segments per millisec
+	 */
+	public final double bandwidth() { // const
+		return bw;
+	}
+
+	public final int minRtt() { // const
+		return min_rtt;
+	}
+
+	private double bdp() { // const, segments
+		return bw * min_rtt;
+	}
+
+	@Override
+	public void rtt(final int current, final int rtt) {
+		if (rtt <= 0)
+			return;
+		final boolean expired = min_rtt > 0 && current - min_rtt_ts > MIN_RTT_WIN;
+		if (expired)
+			min_rtt_expired = true;
+		if (min_rtt == 0 || rtt <= min_rtt || expired) {
+			min_rtt = rtt;
+			min_rtt_ts = current;
+		}
+	}
+
+	@Override
+	public void acked(final int current, final int una, final int acked, final int inflight, final int rmt_wnd) {
+		if (acked <= 0)
+			return;
+		delivered += acked;
+		final int elapsed = current - round_start;
+		if (elapsed >= Math.max(min_rtt, 1)) { // round end
+			bws[round_count++ % BW_ROUNDS] = (double)(delivered - round_delivered) / elapsed;
+			double max = 0;
+			for (final double b : bws)
+				max = Math.max(max, b);
+			bw = max;
+			round_start = current;
+			round_delivered = delivered;
+			if (mode == STARTUP) {
+				if (bw >= full_bw * 1.25) {
+					full_bw = bw;
+					full_bw_count = 0;
+				} else if (++full_bw_count >= 3)
+					mode = DRAIN;
+			} else if (mode == PROBE_BW)
+				cycle = (cycle + 1) % CYCLE_GAINS.length;
+		}
+		if (mode == DRAIN && inflight <= bdp()) {
+			mode = PROBE_BW;
+			cycle = 2;
+		}
+		if (min_rtt_expired && mode != PROBE_RTT) {
+			min_rtt_expired = false;
+			prior_cwnd = cwnd;
+			mode = PROBE_RTT;
+			probe_rtt_done = current + PROBE_RTT_TIME;
+		} else if (mode == PROBE_RTT && current - probe_rtt_done >= 0) {
+			min_rtt_ts = current;
+			if (full_bw_count >= 3)
+				mode = PROBE_BW; // the window follows bdp at once
+			else {
+				mode = STARTUP;
+				cwnd = Math.max(cwnd, prior_cwnd); // keep growing from the window before PROBE_RTT
+			}
+		}
+
+		final double bdp = bdp();
+		double w;
+		switch (mode) {
+		case STARTUP:
+			w = bw > 0 && cwnd >= STARTUP_GAIN * bdp ? cwnd : cwnd + acked;
+			break;
+		case DRAIN:
+			w = bdp;
+			break;
+		case PROBE_BW:
+			w = CWND_GAIN * CYCLE_GAINS[cycle] * bdp;
+			break;
+		default: // PROBE_RTT
+			w = MIN_CWND;
+		}
+		final int cap = Math.max(rmt_wnd, 2) * 2; // do not grow far beyond what the remote can take
+		cwnd = (int)Math.min(Math.max(w, MIN_CWND), cap);
+		ssthresh = bw > 0 ? Math.max((int)bdp, 1) : Integer.MAX_VALUE;
+	}
+
+	@Override
+	public void timeout(final int current, final int wnd, final int inflight) {
+		cwnd = bw > 0 ? Math.max((int)bdp(), MIN_CWND) : 1;
+	}
+
+	@Override
+	public void fastResend(final int current, final int inflight, final int resend) {
+	}
+}
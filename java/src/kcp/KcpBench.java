@@ -0,0 +1,257 @@
+package kcp;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Micro benchmarks for the hot paths of Kcp and KcpServer, reporting time and heap allocation per unit.
+ * <li>send: fragmentation in message and streaming mode.
+ * <li>window/N: a full window of N segments: flush, input (data-heavy), recv (reassembly), input (ack-heavy).
+ * <li>batch/N: window/N with batched input of all packets.
+ * <li>server/N: check and update across N idle sessions.
+ * <p>Usage: java kcp.KcpBench [filter] [measure millisec]. allocation needs com.sun.management.ThreadMXBean (HotSpot).
+ */
+public final class KcpBench {
+	private static final int WARMUP_MS = 1000;
+	private static final int MEASURE_MS_DEF = 2000;
+	private static final int IKCP_MSS = Kcp.IKCP_MTU_DEF - Kcp.IKCP_OVERHEAD;
+	private static final com.sun.management.ThreadMXBean threadBean;
+
+	static {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)bean)
+				.isThreadAllocatedMemorySupported()) {
+			threadBean = (com.sun.management.ThreadMXBean)bean;
+			threadBean.setThreadAllocatedMemoryEnabled(true);
+		} else
+			threadBean = null;
+	}
+
+	private static long allocated() { // allocated heap bytes of current thread, -1 if not supported
+		return threadBean != null ? threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+	}
+
+	private static final class Meter {
+		final String name;
+		final int units; // units per measure, eg. segments of a window
+		long count;
+		long nanos;
+		long bytes;
+		private long t0;
+		private long b0;
+
+		Meter(final String name, final int units) {
+			this.name = name;
+			this.units = units;
+		}
+
+		void begin() {
+			b0 = allocated();
+			t0 = System.nanoTime();
+		}
+
+		void end() {
+			nanos += System.nanoTime() - t0;
+			bytes += allocated() - b0;
+			count++;
+		}
+
+		void reset() {
+			count = 0;
+			nanos = 0;
+			bytes = 0;
+		}
+
+		void report() {
+			final double n = (double)count * units;
+			System.out.printf("%-24s %10.1f ns/op %12.0f op/s %8.2f B/op%n", name, nanos / n, n * 1e9 / nanos,
+					threadBean != null ? bytes / n : Double.NaN);
+		}
+	}
+
+	private abstract static class Case {
+		final ArrayList<Meter> meters = new ArrayList<Meter>();
+
+		final Meter meter(final String name, final int units) {
+			final Meter m = new Meter(name, units);
+			meters.add(m);
+			return m;
+		}
+
+		abstract void run(); // one round, must begin/end some meters
+	}
+
+	private static final class Sink extends Kcp { // keeps output packets for the peer
+		byte[][] pkts = new byte[16][];
+		int[] lens = new int[16];
+		int npkts;
+
+		Sink(final int conv, final boolean stream) {
+			super(conv, 0, IKCP_MTU_DEF, null, stream);
+		}
+
+		@Override
+		public void output(final int len) {
+			if (npkts == pkts.length) {
+				pkts = Arrays.copyOf(pkts, npkts * 2);
+				lens = Arrays.copyOf(lens, npkts * 2);
+			}
+			byte[] pkt = pkts[npkts];
+			if (pkt == null)
+				pkts[npkts] = pkt = new byte[IKCP_MTU_DEF];
+			System.arraycopy(buffer, 0, pkt, 0, len);
+			lens[npkts++] = len;
+		}
+
+		void inputTo(final Kcp kcp, final boolean batch) {
+			if (batch)
+				kcp.input(pkts, null, lens, npkts, null);
+			else {
+				for (int i = 0; i < npkts; i++)
+					kcp.input(pkts[i], 0, lens[i]);
+			}
+			npkts = 0;
+		}
+	}
+
+	private static Case sendCase(final boolean stream, final int size, final int batch) {
+		return new Case() {
+			final Sink kcp = new Sink(1, stream);
+			final byte[] data = new byte[size];
+			final Meter m = meter((stream ? "send/stream/" : "send/message/") + size, batch);
+
+			@Override
+			void run() {
+				m.begin();
+				for (int i = 0; i < batch; i++)
+					kcp.send(data, 0, size);
+				m.end();
+				kcp.release(); // drop the queue
+			}
+		};
+	}
+
+	private static Case windowCase(final int wnd, final boolean batch) {
+		final String name = (batch ? "batch/" : "window/") + wnd;
+		return new Case() {
+			final Sink snd = new Sink(2, false);
+			final Sink rcv = new Sink(2, false);
+			final byte[] data = new byte[IKCP_MSS];
+			final byte[] buf = new byte[IKCP_MSS];
+			final Meter mFlush = meter(name + "/flush", wnd);
+			final Meter mData = meter(name + "/input-data", wnd);
+			final Meter mRecv = meter(name + "/recv", wnd);
+			final Meter mAck = meter(name + "/input-ack", wnd);
+			int current;
+
+			{
+				snd.wndsize(wnd, wnd);
+				rcv.wndsize(wnd, wnd);
+				snd.nodelay(1, 10, 2, 1);
+				rcv.nodelay(1, 10, 2, 1);
+			}
+
+			@Override
+			void run() {
+				current++;
+				for (int i = 0; i < wnd; i++)
+					snd.send(data, 0, data.length);
+				mFlush.begin();
+				snd.flush(current);
+				mFlush.end();
+				mData.begin();
+				snd.inputTo(rcv, batch);
+				mData.end();
+				mRecv.begin();
+				while (rcv.recv(buf, 0, buf.length) >= 0) {
+				}
+				mRecv.end();
+				rcv.flush(current);
+				mAck.begin();
+				rcv.inputTo(snd, batch);
+				mAck.end();
+			}
+		};
+	}
+
+	private static Case serverCase(final int nsessions) {
+		return new Case() {
+			final KcpServer<Kcp> server = new KcpServer<Kcp>(0, 10) {
+				@Override
+				protected Kcp accept(final int conv, final int current) {
+					return null;
+				}
+			};
+			final Kcp[] sessions = new Kcp[nsessions];
+			final Meter mCheck = meter("server/" + nsessions + "/check", nsessions);
+			final Meter mUpdate = meter("server/" + nsessions + "/update", nsessions);
+			int current;
+
+			{
+				final byte[] buffer = new byte[Kcp.IKCP_MTU_DEF];
+				for (int i = 0; i < nsessions; i++) {
+					final Kcp kcp = new Kcp(i, 0, Kcp.IKCP_MTU_DEF, buffer, false) {
+						@Override
+						public void output(final int len) {
+						}
+					};
+					kcp.nodelay(1, 10, 2, 1);
+					sessions[i] = kcp;
+					server.add(kcp);
+				}
+			}
+
+			@Override
+			void run() {
+				current += 10; // all sessions are due every round
+				int t = 0;
+				mCheck.begin();
+				for (final Kcp kcp : sessions)
+					t ^= kcp.check(current);
+				mCheck.end();
+				if (t == 1)
+					System.out.print(""); // keep the result alive
+				mUpdate.begin();
+				server.update(current);
+				mUpdate.end();
+			}
+		};
+	}
+
+	private static void bench(final Case c, final int measureMs) {
+		for (final long end = System.nanoTime() + WARMUP_MS * 1000000L; System.nanoTime() - end < 0; )
+			c.run();
+		for (final Meter m : c.meters)
+			m.reset();
+		for (final long end = System.nanoTime() + measureMs * 1000000L; System.nanoTime() - end < 0; )
+			c.run();
+		for (final Meter m : c.meters)
+			m.report();
+	}
+
+	public static void main(String[] args) {
+		final String filter = args.length > 0 ? args[0] : "";
+		final int measureMs = args.length > 1 ? Integer.parseInt(args[1]) : MEASURE_MS_DEF;
+		if (threadBean == null)
+			System.out.println("allocation is not measured (no com.sun.management.ThreadMXBean)");
+		final String[] names = {"send/message", "send/stream", "window/32", "window/256", "window/1024", "batch/256",
+				"server/1000", "server/100000"};
+		for (final String name : names) {
+			if (!name.contains(filter))
+				continue;
+			final Case c;
+			if (name.equals("send/message"))
+				c = sendCase(false, 4000, 256);
+			else if (name.equals("send/stream"))
+				c = sendCase(true, 500, 1024);
+			else if (name.startsWith("window/"))
+				c = windowCase(Integer.parseInt(name.substring(7)), false);
+			else if (name.startsWith("batch/"))
+				c = windowCase(Integer.parseInt(name.substring(6)), true);
+			else
+				c = serverCase(Integer.parseInt(name.substring(7)));
+			bench(c, measureMs);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package kcp;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Reference-counted user buffer for Kcp.send(KcpBuf,int,int) without copy.
+ * <p>created with one reference owned by the creator, each send segment retains one more and releases it when acknowledged.
+ * deallocate() is called when the last reference is released (eg. return the array to a pool).
+ */
+public class KcpBuf {
+	private static final AtomicIntegerFieldUpdater<KcpBuf> refCntUpdater =
+			AtomicIntegerFieldUpdater.newUpdater(KcpBuf.class, "refCnt");
+	final byte[] data;
+	private volatile int refCnt = 1;
+
+	public KcpBuf(final byte[] data) {
+		this.data = data;
+	}
+
+	public final byte[] data() { // const
+		return data;
+	}
+
+	public final int refCnt() { // const
+		return refCnt;
+	}
+
+	public final KcpBuf retain() {
+		for (; ; ) {
+			final int n = refCnt;
+			if (n <= 0)
+				throw new IllegalStateException("released");
+			if (refCntUpdater.compareAndSet(this, n, n + 1))
+				return this;
+		}
+	}
+
+	/**
+	 * returns true if it is the last reference and deallocated
+	 */
+	public final boolean release() {
+		final int n = refCntUpdater.decrementAndGet(this);
+		if (n > 0)
+			return false;
+		if (n < 0)
+			throw new IllegalStateException("released");
+		deallocate();
+		return true;
+	}
+
+	protected void deallocate() {
+	}
+}
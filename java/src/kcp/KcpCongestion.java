@@ -0,0 +1,67 @@
+package kcp;
+
+/**
+ * Congestion controller of Kcp (set by Kcp.congestion), decides 'cwnd' in segments from ack, loss and rtt events.
+ * <li>called synchronously on the thread of Kcp, one instance per session.
+ * <li>ignored by flush if 'nocwnd' (nodelay nc=1), but still fed by events.
+ * <p>KcpReno (default, the classic KCP behavior), KcpCubic, KcpBbr.
+ */
+public abstract class KcpCongestion {
+	protected int mss;      // segment payload size in bytes
+	protected int cwnd = 1; // congestion window in segments [1,]
+	protected int ssthresh = Kcp.IKCP_THRESH_INIT; // slow start threshold in segments
+
+	/**
+	 * called when installed into Kcp (and Kcp constructor), reset the state
+	 */
+	public void init(final int mss, @SuppressWarnings("unused") final int current) {
+		this.mss = mss;
+		cwnd = 1;
+		ssthresh = Kcp.IKCP_THRESH_INIT;
+	}
+
+	public final int cwnd() { // const
+		return cwnd;
+	}
+
+	public final int ssthresh() { // const
+		return ssthresh;
+	}
+
+	/**
+	 * after an input acknowledged segments (input)
+	 * @param una segments acknowledged by advancing snd_una
+	 * @param acked segments acknowledged in total (una, ack and sack)
+	 * @param inflight segments in flight after it
+	 * @param rmt_wnd remote window in segments
+	 */
+	public abstract void acked(int current, int una, int acked, int inflight, int rmt_wnd);
+
+	/**
+	 * after a batch of inputs acknowledged segments (Kcp.input of arrays), called once instead of acked per input.
+	 * the default is one acked for the whole batch
+	 * @param packets inputs of the batch which advanced snd_una
+	 */
+	public void ackedBatch(final int current, final int una, final int acked, final int inflight, final int rmt_wnd,
+			@SuppressWarnings("unused") final int packets) {
+		acked(current, una, acked, inflight, rmt_wnd);
+	}
+
+	/**
+	 * segments were retransmitted by timeout (flush)
+	 * @param wnd the effective send window used by this flush
+	 */
+	public abstract void timeout(int current, int wnd, int inflight);
+
+	/**
+	 * segments were retransmitted by fast resend without timeout (flush)
+	 * @param resend the fast resend threshold
+	 */
+	public abstract void fastResend(int current, int inflight, int resend);
+
+	/**
+	 * an rtt sample in millisec (input)
+	 */
+	public void rtt(int current, int rtt) {
+	}
+}
@@ -0,0 +1,83 @@
+package kcp;
+
+/**
+ * CUBIC congestion control (RFC 8312) in segments, for high bandwidth-delay links.
+ * <li>after a loss the window grows by W(t)=C*(t-K)^3+Wmax, fast near Wmax, probing faster away from it.
+ * <li>never slower than the Reno-friendly estimate, slow start below ssthresh.
+ * <li>timeout: cwnd=1 (Wmax is kept). fast resend: cwnd*=beta.
+ */
+public class KcpCubic extends KcpCongestion {
+	public static final double C = 0.4;
+	public static final double BETA = 0.7;
+	private double w;        // cwnd with fraction
+	private double w_max;    // window before the last reduction
+	private double k;        // seconds to reach w_max from epoch_start
+	private double w_est;    // Reno-friendly estimate
+	private int epoch_start; // uint32_t, start of the growth epoch if epoch
+	private boolean epoch;
+	private int min_rtt;     // millisec, 0 for no sample
+
+	@Override
+	public void init(final int mss, final int current) {
+		super.init(mss, current);
+		ssthresh = Integer.MAX_VALUE; // slow start until the first loss
+		w = cwnd;
+		w_max = 0;
+		epoch = false;
+		min_rtt = 0;
+	}
+
+	@Override
+	public void rtt(final int current, final int rtt) {
+		if (rtt > 0 && (min_rtt == 0 || rtt < min_rtt))
+			min_rtt = rtt;
+	}
+
+	@Override
+	public void acked(final int current, final int una, final int acked, final int inflight, final int rmt_wnd) {
+		if (acked <= 0)
+			return;
+		if (w < ssthresh)
+			w += acked;
+		else {
+			if (!epoch) {
+				epoch = true;
+				epoch_start = current;
+				k = w_max > w ? Math.cbrt((w_max - w) / C) : 0;
+				if (w_max < w)
+					w_max = w;
+				w_est = w;
+			}
+			final int rtt = Math.max(min_rtt, 1);
+			final double t = (current - epoch_start + rtt) / 1000.0;
+			w_est += 3 * (1 - BETA) / (1 + BETA) * acked / w;
+			final double target = Math.max(Math.max(C * (t - k) * (t - k) * (t - k) + w_max, w_est), w);
+			w += Math.min(target - w, w) * acked / w; // at most double per rtt
+		}
+		final int cap = Math.max(rmt_wnd, 2) * 2; // do not grow far beyond what the remote can take
+		if (w > cap)
+			w = cap;
+		cwnd = Math.max((int)w, 1);
+	}
+
+	private void reduce() {
+		w_max = w < w_max ? w * (1 + BETA) / 2 : w; // fast convergence
+		epoch = false;
+	}
+
+	@Override
+	public void timeout(final int current, final int wnd, final int inflight) {
+		reduce();
+		ssthresh = Math.max((int)(w * BETA), Kcp.IKCP_THRESH_MIN);
+		w = 1;
+		cwnd = 1;
+	}
+
+	@Override
+	public void fastResend(final int current, final int inflight, final int resend) {
+		reduce();
+		w = Math.max(w * BETA, Kcp.IKCP_THRESH_MIN);
+		ssthresh = (int)w;
+		cwnd = (int)w;
+	}
+}
@@ -0,0 +1,454 @@
+package kcp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Forward error correction between Kcp and the transport, recovers lost packets without waiting for a retransmission.
+ * <li>every N outgoing packets form a group followed by M parity packets (XOR for M=1, Reed-Solomon over GF(256) by a
+ * Cauchy matrix otherwise), any N of the N+M packets recover the whole group.
+ * <li>data packets are sent and delivered at once (unchanged plus a trailer), so it never delays, only adds parity.
+ * 'conv' stays at offset 0 of every packet for demultiplexing (eg. KcpServer).
+ * <li>a parity packet is 2 bytes (length) longer than the largest data packet, so Kcp must use mtu-MTU_RESERVED.
+ * a group closed early by flush tells its size by the parity, or by a closing packet (conv and trailer) if M=0.
+ * <li>adaptive if minParity &lt; maxParity: loss is measured from incoming groups (the link is assumed symmetric),
+ * M (and N if M is not enough) of the next outgoing groups follow it, M=0 for a clean link.
+ * <li>shard buffers are pooled, no allocation after warm up. not thread-safe, use it on the thread of Kcp.
+ * <p>Usage: Kcp with mtu-MTU_RESERVED; Kcp.output->encode->output(to transport); transport->decode->deliver(to Kcp.input)
+ */
+public abstract class KcpFec {
+	public static final int OVERHEAD = 7;     // trailer: group(4), idx(1), n(1), m(1)
+	public static final int MTU_RESERVED = OVERHEAD + 2; // trailer and length of a parity shard
+	public static final int MAX_SHARDS = 64;  // max n+m
+	public static final int GROUPS = 16;      // incoming groups kept for recovery
+	private static final int[] EXP = new int[512]; // GF(256), x^8+x^4+x^3+x^2+1
+	private static final int[] LOG = new int[256];
+
+	static {
+		for (int i = 0, x = 1; i < 255; i++) {
+			EXP[i] = EXP[i + 255] = x;
+			LOG[x] = i;
+			x <<= 1;
+			if (x >= 0x100)
+				x ^= 0x11d;
+		}
+	}
+
+	private static final class Group {
+		final byte[][] shards = new byte[MAX_SHARDS][];
+		final int[] lens = new int[MAX_SHARDS];
+		int id;      // uint32_t
+		int n;       // data shards, from parity if received
+		int m;       // parity shards
+		int conv;
+		long present;
+		boolean used;
+		boolean parity; // n and m are final, from parity or a closing packet
+		boolean done; // recovered or all data received, shards released
+	}
+
+	private final int data;      // configured data shards
+	private final int minParity;
+	private final int maxParity;
+	private final int shardMax;  // len(2) + kcp packet without conv, or parity
+	private final byte[] frame;  // encoded packet to output
+	private final byte[] dframe; // recovered packet to deliver
+	private byte[] ibuf;         // copy of direct input
+	private final byte[][] enc_shards = new byte[MAX_SHARDS][];
+	private final int[] enc_lens = new int[MAX_SHARDS];
+	private int enc_group;       // uint32_t
+	private int enc_count;
+	private int enc_n;
+	private int enc_m;
+	private int enc_conv;
+	private final Group[] groups = new Group[GROUPS];
+	private final byte[][] pool = new byte[GROUPS * MAX_SHARDS][];
+	private int npool;
+	private final int[] rows = new int[MAX_SHARDS];
+	private final int[] mat = new int[MAX_SHARDS * MAX_SHARDS];
+	private final int[] inv = new int[MAX_SHARDS * MAX_SHARDS];
+	private int loss;            // permille of incoming shards, smoothed
+	private long recovered;
+	private long failed;
+
+	/**
+	 * @param mtu max packet size to the transport, Kcp must use mtu-MTU_RESERVED
+	 * @param data data shards (N) per group
+	 * @param minParity parity shards (M) per group on a clean link, equal to maxParity for a fixed M
+	 */
+	public KcpFec(final int mtu, final int data, final int minParity, final int maxParity) {
+		if (mtu <= MTU_RESERVED + Kcp.IKCP_OVERHEAD || mtu > 0x7fff)
+			throw new IllegalArgumentException("mtu=" + mtu);
+		if (data < 1 || minParity < 0 || maxParity < minParity || data + maxParity > MAX_SHARDS)
+			throw new IllegalArgumentException("data=" + data + ",parity=" + minParity + '~' + maxParity);
+		this.data = data;
+		this.minParity = minParity;
+		this.maxParity = maxParity;
+		shardMax = mtu - MTU_RESERVED - 2; // parity: conv(4) + shardMax + OVERHEAD == mtu
+		frame = new byte[mtu];
+		dframe = new byte[mtu];
+		for (int i = 0; i < GROUPS; i++)
+			groups[i] = new Group();
+		enc_n = data;
+		enc_m = minParity;
+	}
+
+	/**
+	 * send a packet (data or parity) in buf[0,len) to the transport
+	 */
+	protected abstract void output(byte[] buf, int len);
+
+	/**
+	 * input a packet (received or recovered) in buf[pos,pos+len) to Kcp, returns the result of Kcp.input
+	 */
+	protected abstract int deliver(byte[] buf, int pos, int len);
+
+	/**
+	 * smoothed loss rate of incoming packets in permille
+	 */
+	public final int loss() { // const
+		return loss;
+	}
+
+	public final long recovered() { // const
+		return recovered;
+	}
+
+	/**
+	 * shards which could not be recovered from enough shards (inconsistent parity)
+	 */
+	public final long failed() { // const
+		return failed;
+	}
+
+	public final int dataShards() { // const
+		return enc_n;
+	}
+
+	public final int parityShards() { // const
+		return enc_m;
+	}
+
+	private static int mul(final int a, final int b) {
+		return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]];
+	}
+
+	// row j of parity, column i of data
+	private static int coef(final int m, final int j, final int i) {
+		return m == 1 ? 1 : EXP[255 - LOG[j ^ (m + i)]];
+	}
+
+	// dst[dpos,dpos+len) ^= c * src[0,len)
+	private static void accumulate(final byte[] dst, final int dpos, final byte[] src, final int len, final int c) {
+		if (c == 1) {
+			for (int i = 0; i < len; i++)
+				dst[dpos + i] ^= src[i];
+		} else if (c != 0) {
+			final int lc = LOG[c];
+			for (int i = 0; i < len; i++) {
+				final int b = src[i] & 0xff;
+				if (b != 0)
+					dst[dpos + i] ^= EXP[lc + LOG[b]];
+			}
+		}
+	}
+
+	// Gauss-Jordan, b = a^-1, 'a' is destroyed
+	private static boolean invert(final int[] a, final int[] b, final int n) {
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < n; j++)
+				b[i * n + j] = i == j ? 1 : 0;
+		for (int c = 0; c < n; c++) {
+			int p = c;
+			while (p < n && a[p * n + c] == 0)
+				p++;
+			if (p == n)
+				return false;
+			if (p != c) {
+				for (int j = 0; j < n; j++) {
+					int t = a[p * n + j];
+					a[p * n + j] = a[c * n + j];
+					a[c * n + j] = t;
+					t = b[p * n + j];
+					b[p * n + j] = b[c * n + j];
+					b[c * n + j] = t;
+				}
+			}
+			final int r = EXP[255 - LOG[a[c * n + c]]];
+			for (int j = 0; j < n; j++) {
+				a[c * n + j] = mul(a[c * n + j], r);
+				b[c * n + j] = mul(b[c * n + j], r);
+			}
+			for (int i = 0; i < n; i++) {
+				final int f = a[i * n + c];
+				if (i != c && f != 0) {
+					for (int j = 0; j < n; j++) {
+						a[i * n + j] ^= mul(f, a[c * n + j]);
+						b[i * n + j] ^= mul(f, b[c * n + j]);
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private byte[] alloc() {
+		return npool > 0 ? pool[--npool] : new byte[shardMax];
+	}
+
+	private void release(final Group g) {
+		for (int i = 0, n = g.n + g.m; i < n; i++) {
+			final byte[] s = g.shards[i];
+			if (s != null) {
+				g.shards[i] = null;
+				if (npool < pool.length)
+					pool[npool++] = s;
+			}
+		}
+	}
+
+	private static void trailer(final byte[] buf, final int pos, final int group, final int idx, final int n, final int m) {
+		Kcp.encode32u(buf, pos, group);
+		buf[pos + 4] = (byte)idx;
+		buf[pos + 5] = (byte)n;
+		buf[pos + 6] = (byte)m;
+	}
+
+	// choose N and M for the next group
+	private void adapt() {
+		int n = data, m = minParity;
+		if (maxParity > minParity) {
+			final int need = loss * 2; // cover twice the loss in permille
+			m = (n * need + 999) / 1000;
+			if (m > maxParity) {
+				m = maxParity;
+				n = Math.max(maxParity * 1000 / need, 1);
+			} else if (m < minParity)
+				m = minParity;
+		}
+		enc_n = n;
+		enc_m = m;
+	}
+
+	/**
+	 * when Kcp outputs a packet (Kcp.output), call it. returns below zero for error, -1 for a packet longer than
+	 * mtu-MTU_RESERVED (the mtu of Kcp is too large)
+	 */
+	public final int encode(final byte[] buf, final int pos, final int len) {
+		if (buf == null || len < Kcp.IKCP_PACKET_MIN || len + MTU_RESERVED > frame.length)
+			return -1;
+		if (enc_count == 0)
+			adapt();
+		final int idx = enc_count++;
+		final byte[] frame = this.frame;
+		System.arraycopy(buf, pos, frame, 0, len);
+		trailer(frame, len, enc_group, idx, enc_n, enc_m);
+		if (enc_m > 0) {
+			byte[] s = enc_shards[idx];
+			if (s == null)
+				enc_shards[idx] = s = new byte[shardMax];
+			s[0] = (byte)(len - 4);
+			s[1] = (byte)((len - 4) >> 8);
+			System.arraycopy(buf, pos + 4, s, 2, len - 4);
+			enc_lens[idx] = len - 2;
+		}
+		enc_conv = Kcp.decode32u(buf, pos);
+		output(frame, len + OVERHEAD);
+		if (enc_count == enc_n)
+			flush();
+		return 0;
+	}
+
+	/**
+	 * same as above for the remaining bytes of 'buf' (heap or direct, eg. Kcp.outbuf), position is not changed
+	 */
+	public final int encode(final ByteBuffer buf) {
+		final int len = buf.remaining();
+		if (buf.hasArray())
+			return encode(buf.array(), buf.arrayOffset() + buf.position(), len);
+		if (len < Kcp.IKCP_PACKET_MIN || len + MTU_RESERVED > frame.length)
+			return -1;
+		buf.duplicate().get(frame, 0, len); // encode copies to frame anyway
+		return encode(frame, 0, len);
+	}
+
+	/**
+	 * close the current outgoing group now and send its parity, eg. when Kcp becomes idle
+	 */
+	public final void flush() {
+		final int k = enc_count, m = enc_m;
+		if (k == 0)
+			return;
+		enc_count = 0;
+		final byte[] frame = this.frame;
+		if (m > 0) {
+			int size = 0;
+			for (int i = 0; i < k; i++)
+				size = Math.max(size, enc_lens[i]);
+			Kcp.encode32u(frame, 0, enc_conv);
+			for (int j = 0; j < m; j++) {
+				Arrays.fill(frame, 4, 4 + size, (byte)0);
+				for (int i = 0; i < k; i++)
+					accumulate(frame, 4, enc_shards[i], enc_lens[i], coef(m, j, i));
+				trailer(frame, 4 + size, enc_group, k + j, k, m);
+				output(frame, 4 + size + OVERHEAD);
+			}
+		} else if (k < enc_n) { // no parity tells the size, the receiver would count the rest as lost
+			Kcp.encode32u(frame, 0, enc_conv);
+			trailer(frame, 4, enc_group, k, k, 0);
+			output(frame, 4 + OVERHEAD);
+		}
+		enc_group++;
+	}
+
+	// sample the loss of a group leaving the window
+	private void retire(final Group g) {
+		final int total = g.n + g.m;
+		if (total > 0) {
+			final int sample = (total - Long.bitCount(g.present)) * 1000 / total;
+			loss += (sample - loss + (sample > loss ? 7 : 0)) / 8;
+		}
+		release(g);
+		g.present = 0;
+		g.used = false;
+		g.parity = false;
+		g.done = false;
+	}
+
+	private int recover(final Group g) {
+		final int n = g.n, m = g.m;
+		final int[] rows = this.rows, mat = this.mat, inv = this.inv;
+		int size = 0;
+		for (int i = 0, k = 0; k < n; i++) {
+			if ((g.present & (1L << i)) != 0) {
+				rows[k] = i;
+				for (int c = 0; c < n; c++)
+					mat[k * n + c] = i < n ? (i == c ? 1 : 0) : coef(m, i - n, c);
+				if (i >= n)
+					size = g.lens[i];
+				k++;
+			}
+		}
+		if (!invert(mat, inv, n)) {
+			failed++;
+			return 0;
+		}
+		int r = 0;
+		for (int i = 0; i < n; i++) {
+			if ((g.present & (1L << i)) != 0)
+				continue;
+			final byte[] s = dframe;
+			Arrays.fill(s, 2, 2 + size, (byte)0);
+			for (int k = 0; k < n; k++)
+				accumulate(s, 2, g.shards[rows[k]], Math.min(g.lens[rows[k]], size), inv[i * n + k]);
+			final int len = (s[2] & 0xff) | ((s[3] & 0xff) << 8);
+			if (len + 2 > size || len + 4 < Kcp.IKCP_PACKET_MIN) {
+				failed++;
+				continue;
+			}
+			Kcp.encode32u(s, 0, g.conv); // over len(2), the packet is conv + s[4,4+len)
+			recovered++;
+			r = deliver(s, 0, len + 4);
+		}
+		return r;
+	}
+
+	/**
+	 * when you received a low level packet (eg. UDP packet), call it.
+	 * returns below zero for error, others from the last deliver
+	 */
+	public final int decode(final byte[] buf, final int pos, int len) {
+		if (buf == null || len < 4 + OVERHEAD)
+			return -1;
+		len -= OVERHEAD;
+		final int end = pos + len;
+		final int group = Kcp.decode32u(buf, end);
+		final int idx = buf[end + 4] & 0xff, n = buf[end + 5] & 0xff, m = buf[end + 6] & 0xff;
+		final boolean close = idx == n && m == 0 && len == 4; // closing packet of a group without parity
+		if (n == 0 || idx >= n + m && !close || n + m > MAX_SHARDS || len - (idx < n ? 2 : 4) > shardMax)
+			return -2;
+		int r = 0;
+		if (idx < n) { // deliver data at once
+			if (len < Kcp.IKCP_PACKET_MIN)
+				return -1;
+			r = deliver(buf, pos, len);
+		}
+		final Group g = groups[group & (GROUPS - 1)];
+		if (g.used && g.id != group) {
+			if (group - g.id < 0)
+				return r; // late for an old group
+			retire(g);
+		}
+		if (!g.used) {
+			g.used = true;
+			g.id = group;
+			g.n = n;
+			g.m = m;
+		}
+		if (close) {
+			if (!g.parity && (g.present & ~((1L << n) - 1)) == 0) {
+				g.parity = true;
+				g.n = n;
+				final long dataMask = (1L << n) - 1;
+				if (!g.done && (g.present & dataMask) == dataMask) {
+					g.done = true;
+					release(g);
+				}
+			}
+			return r;
+		}
+		if (idx >= n) { // parity decides n and m of the group (may be closed early by flush)
+			if (g.parity ? g.n != n || g.m != m : (g.present & ~((1L << n) - 1)) != 0)
+				return r; // inconsistent
+			g.parity = true;
+			g.n = n;
+			g.m = m;
+			g.conv = Kcp.decode32u(buf, pos);
+		} else if (g.parity && idx >= g.n)
+			return r; // inconsistent
+		final long bit = 1L << idx;
+		if ((g.present & bit) != 0)
+			return r; // duplicate
+		g.present |= bit;
+		if (g.done)
+			return r;
+		final byte[] s = g.shards[idx] = alloc();
+		if (idx < n) {
+			s[0] = (byte)(len - 4);
+			s[1] = (byte)((len - 4) >> 8);
+			System.arraycopy(buf, pos + 4, s, 2, len - 4);
+			g.lens[idx] = len - 2;
+		} else {
+			System.arraycopy(buf, pos + 4, s, 0, len - 4);
+			g.lens[idx] = len - 4;
+		}
+		final long dataMask = (1L << g.n) - 1;
+		if ((g.present & dataMask) == dataMask) {
+			g.done = true;
+			release(g);
+		} else if (g.parity && Long.bitCount(g.present) >= g.n) {
+			g.done = true;
+			final int rr = recover(g);
+			release(g);
+			if (idx >= n)
+				r = rr;
+		}
+		return r;
+	}
+
+	/**
+	 * same as above for the remaining bytes of 'buf' (heap or direct), position is not changed
+	 */
+	public final int decode(final ByteBuffer buf) {
+		final int len = buf.remaining();
+		if (buf.hasArray())
+			return decode(buf.array(), buf.arrayOffset() + buf.position(), len);
+		if (len > frame.length)
+			return -1;
+		byte[] tmp = ibuf;
+		if (tmp == null)
+			ibuf = tmp = new byte[frame.length];
+		buf.duplicate().get(tmp, 0, len);
+		return decode(tmp, 0, len);
+	}
+}
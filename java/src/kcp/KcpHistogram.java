@@ -0,0 +1,129 @@
+package kcp;
+
+import java.util.Arrays;
+
+/**
+ * HDR-style histogram of non-negative int values (eg. latency in millisec) with bounded relative error.
+ * <li>values below 2^precision are exact, others fall in log-linear buckets of relative width 2^(1-precision).
+ * <li>record is O(1) without allocation, histograms of the same precision can be merged (eg. across sessions/threads).
+ * <li>not thread-safe.
+ */
+public final class KcpHistogram {
+	public static final int PRECISION_DEF = 5; // 32 exact values, ~3% relative error above
+	private final int precision;
+	private final long[] counts;
+	private long count;
+	private long sum;
+	private int min = Integer.MAX_VALUE;
+	private int max;
+
+	public KcpHistogram() {
+		this(PRECISION_DEF);
+	}
+
+	/**
+	 * @param precision significant bits [1,16]
+	 */
+	public KcpHistogram(final int precision) {
+		if (precision < 1 || precision > 16)
+			throw new IllegalArgumentException("precision=" + precision);
+		this.precision = precision;
+		counts = new long[(33 - precision) << (precision - 1)];
+	}
+
+	public int precision() { // const
+		return precision;
+	}
+
+	private int index(final int v) { // const
+		if (v < 1 << precision)
+			return v;
+		final int e = 32 - precision - Integer.numberOfLeadingZeros(v); // highest bit - precision + 1
+		return (e << (precision - 1)) + (v >>> e);
+	}
+
+	private int highest(final int i) { // const, highest value of bucket 'i'
+		if (i < 1 << precision)
+			return i;
+		final int e = (i >>> (precision - 1)) - 1;
+		final long m = i - (e << (precision - 1));
+		return (int)Math.min(((m + 1) << e) - 1, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * record a value, negative value is recorded as 0
+	 */
+	public void record(int value) {
+		if (value < 0)
+			value = 0;
+		counts[index(value)]++;
+		count++;
+		sum += value;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	public long count() { // const
+		return count;
+	}
+
+	public int min() { // const
+		return count > 0 ? min : 0;
+	}
+
+	public int max() { // const
+		return max;
+	}
+
+	public double mean() { // const
+		return count > 0 ? (double)sum / count : 0;
+	}
+
+	/**
+	 * the value at 'percentile' [0,100] (highest equivalent value of its bucket), 0 if empty
+	 */
+	public int percentile(final double percentile) { // const
+		if (count == 0)
+			return 0;
+		final long rank = Math.max((long)Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * count), 1);
+		long n = 0;
+		for (int i = 0; i < counts.length; i++) {
+			n += counts[i];
+			if (n >= rank)
+				return Math.min(Math.max(highest(i), min), max);
+		}
+		return max;
+	}
+
+	/**
+	 * add all values of 'h' (same precision) into this histogram
+	 */
+	public void merge(final KcpHistogram h) {
+		if (h.precision != precision)
+			throw new IllegalArgumentException("precision " + h.precision + " != " + precision);
+		if (h.count == 0)
+			return;
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += h.counts[i];
+		count += h.count;
+		sum += h.sum;
+		min = Math.min(min, h.min);
+		max = Math.max(max, h.max);
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		min = Integer.MAX_VALUE;
+		max = 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d min=%d mean=%.1f p50=%d p90=%d p99=%d p999=%d max=%d", count, min(), mean(),
+				percentile(50), percentile(90), percentile(99), percentile(99.9), max);
+	}
+}
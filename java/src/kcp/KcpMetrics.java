@@ -0,0 +1,68 @@
+package kcp;
+
+/**
+ * Instrumentation callbacks of Kcp (set by Kcp.metrics), all no-op by default, override what you need.
+ * <li>called synchronously on the thread of Kcp with primitive arguments only, implementations should not allocate.
+ * <li>one instance can be shared by many sessions of the same thread to aggregate them, see KcpStats.
+ */
+public abstract class KcpMetrics {
+	/**
+	 * a data segment is transmitted for the first time (flush)
+	 */
+	public void sent(Kcp kcp, int sn, int len) {
+	}
+
+	/**
+	 * a data segment is retransmitted by timeout or fast resend, 'xmit' is the transmit count including this (flush)
+	 */
+	public void resent(Kcp kcp, int sn, int len, int xmit, boolean fast) {
+	}
+
+	/**
+	 * a new data segment is accepted into the receive window (input)
+	 */
+	public void received(Kcp kcp, int sn, int len) {
+	}
+
+	/**
+	 * a data segment is dropped because it was received before (input)
+	 */
+	public void duplicate(Kcp kcp, int sn) {
+	}
+
+	/**
+	 * a data segment is dropped because it is beyond the receive window (input)
+	 */
+	public void outOfWindow(Kcp kcp, int sn) {
+	}
+
+	/**
+	 * a message is moved out of the receive queue, 'count' is its number of segments (recv)
+	 */
+	public void delivered(Kcp kcp, int len, int count) {
+	}
+
+	/**
+	 * an RTT sample from ack in millisec with the updated srtt, rttval and rto (input)
+	 */
+	public void rtt(Kcp kcp, int rtt, int srtt, int rttval, int rto) {
+	}
+
+	/**
+	 * congestion window or slow start threshold is changed (flush, input)
+	 */
+	public void cwnd(Kcp kcp, int cwnd, int ssthresh) {
+	}
+
+	/**
+	 * queue depths at the end of each flush
+	 */
+	public void queues(Kcp kcp, int nsnd_que, int nsnd_buf, int nrcv_que) {
+	}
+
+	/**
+	 * window probe command IKCP_CMD_WASK or IKCP_CMD_WINS, sent (flush) or received (input)
+	 */
+	public void probe(Kcp kcp, int cmd, boolean received) {
+	}
+}
@@ -0,0 +1,124 @@
+package kcp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Read-only view of a received message, holding the segments moved out of Kcp by Kcp.recv(KcpMsg) without copying.
+ * <p>release() returns the segments to Kcp.freeSeg (on the thread of Kcp), then the view can be reused.
+ */
+public final class KcpMsg {
+	private Kcp owner;
+	private KcpSeg[] segs = new KcpSeg[4];
+	private int count;
+	private int size;
+
+	void add(final Kcp owner, final KcpSeg seg) { // only for Kcp.recv
+		this.owner = owner;
+		if (count == segs.length)
+			segs = Arrays.copyOf(segs, count * 2);
+		segs[count++] = seg;
+		size += seg.len;
+	}
+
+	/**
+	 * total bytes of the message
+	 */
+	public int size() { // const
+		return size;
+	}
+
+	/**
+	 * number of segments (fragments) of the message
+	 */
+	public int segments() { // const
+		return count;
+	}
+
+	public int segmentLength(final int i) { // const
+		return segs[i].len;
+	}
+
+	/**
+	 * read-only buffer of segment 'i', valid until release()
+	 */
+	public ByteBuffer segment(final int i) { // const
+		final KcpSeg seg = segs[i];
+		if (seg.data != null)
+			return ByteBuffer.wrap(seg.data, 0, seg.len).slice().asReadOnlyBuffer();
+		final ByteBuffer bb = seg.buf.asReadOnlyBuffer();
+		bb.limit(seg.len);
+		bb.position(0);
+		return bb.slice();
+	}
+
+	public byte get(int index) { // const
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException();
+		for (int i = 0; ; i++) {
+			final KcpSeg seg = segs[i];
+			if (index < seg.len)
+				return seg.get(index);
+			index -= seg.len;
+		}
+	}
+
+	/**
+	 * copy at most 'len' bytes from 'offset' of the message to 'dst', returns copied size
+	 */
+	public int read(int offset, final byte[] dst, int pos, int len) { // const
+		len = Math.min(len, size - offset);
+		if (offset < 0 || len <= 0)
+			return 0;
+		final int n = len;
+		for (int i = 0; len > 0; i++) {
+			final KcpSeg seg = segs[i];
+			if (offset >= seg.len) {
+				offset -= seg.len;
+				continue;
+			}
+			final int m = Math.min(seg.len - offset, len);
+			seg.get(offset, dst, pos, m);
+			pos += m;
+			len -= m;
+			offset = 0;
+		}
+		return n;
+	}
+
+	/**
+	 * same as read(offset,byte[],pos,len) into the remaining space of 'dst', position is advanced by copied size
+	 */
+	public int read(int offset, final ByteBuffer dst) { // const
+		int len = Math.min(dst.remaining(), size - offset);
+		if (offset < 0 || len <= 0)
+			return 0;
+		final int n = len;
+		for (int i = 0; len > 0; i++) {
+			final KcpSeg seg = segs[i];
+			if (offset >= seg.len) {
+				offset -= seg.len;
+				continue;
+			}
+			final int m = Math.min(seg.len - offset, len);
+			seg.get(offset, dst, m);
+			len -= m;
+			offset = 0;
+		}
+		return n;
+	}
+
+	/**
+	 * return the segments to Kcp, the view is empty after it
+	 */
+	public void release() {
+		final KcpSeg[] segs = this.segs;
+		for (int i = 0, n = count; i < n; i++) {
+			owner.freeSeg(segs[i]);
+			segs[i] = null;
+		}
+		owner = null;
+		count = 0;
+		size = 0;
+	}
+}
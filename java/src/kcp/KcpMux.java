@@ -0,0 +1,309 @@
+package kcp;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Multiplexed logical streams over one Kcp (message mode), instead of a conversation per channel.
+ * <li>each Kcp message is a frame: type|flags(1), stream id(varint), then data, or credit(varint) for flow control.
+ * <li>messages of a stream are cut into frames of at most one segment and reassembled, so streams interleave.
+ * <li>per-stream flow control: the sender has 'window' bytes of credit, the receiver gives them back after 'received'
+ * returns, so a message is at most 'window' bytes and a partial one buffered here is bounded by it.
+ * <li>frames go into Kcp only while its send queue is below 'queue' segments: the highest priority ready stream first,
+ * weighted (deficit round robin by bytes) among the same priority. so bulk data waits here, not in snd_queue in front
+ * of latency-critical messages.
+ * <li>stream ids are [0,MAX_STREAMS), opened by the first use on either side. not thread-safe, use it on the thread
+ * of Kcp.
+ * <p>Usage: stream(id).send->schedule; Kcp.input->recv->received(stream, message)->schedule; schedule before update
+ */
+public abstract class KcpMux {
+	public static final int FRAME_DATA = 0;
+	public static final int FRAME_CREDIT = 1;
+	public static final int FLAG_END = 0x80;      // the last frame of a message
+	public static final int MAX_STREAMS = 0x10000;
+	public static final int HEAD_MAX = 4;         // type(1) + id(varint, 1~3)
+
+	public final class Stream {
+		private final int id;
+		private int priority;     // smaller first
+		private int weight = 1;   // share among the same priority
+		private int credit;       // bytes allowed to send
+		private int deficit;      // bytes to send in this round
+		private final ArrayDeque<byte[]> sndq = new ArrayDeque<byte[]>();
+		private int snd_off;      // sent bytes of the head of sndq
+		private int npending;     // bytes in sndq not sent
+		private boolean ready;    // in 'ready'
+		private int rcv_left;     // bytes the remote can still send
+		private int rcv_used;     // bytes consumed by 'received' and not credited back yet
+		private byte[] rbuf;      // partial message
+		private int rlen;
+
+		Stream(final int id) {
+			this.id = id;
+			credit = window;
+			rcv_left = window;
+		}
+
+		public int id() { // const
+			return id;
+		}
+
+		public int priority() { // const
+			return priority;
+		}
+
+		public int weight() { // const
+			return weight;
+		}
+
+		/**
+		 * @param priority smaller is scheduled first, eg. 0 for latency-critical, 1 for bulk
+		 * @param weight relative share of bytes among ready streams of the same priority [1,]
+		 */
+		public void priority(final int priority, final int weight) {
+			this.priority = priority;
+			this.weight = Math.max(weight, 1);
+		}
+
+		/**
+		 * bytes allowed to send by the remote
+		 */
+		public int credit() { // const
+			return credit;
+		}
+
+		/**
+		 * bytes queued by send, not in Kcp yet
+		 */
+		public int pending() { // const
+			return npending;
+		}
+
+		/**
+		 * queue a message (copied), sent by schedule. returns below zero for error, -2 for a message longer than 'window'
+		 */
+		public int send(final byte[] buf, final int pos, final int len) {
+			if (len < 0)
+				return -1;
+			if (len > window)
+				return -2;
+			sndq.add(Arrays.copyOfRange(buf, pos, pos + len));
+			npending += len;
+			if (!ready) {
+				ready = true;
+				if (nready == readys.length)
+					readys = Arrays.copyOf(readys, nready * 2);
+				readys[nready++] = this;
+			}
+			return 0;
+		}
+	}
+
+	private final Kcp kcp;
+	private final int window;
+	private final int queue;
+	private final int frame;   // max data of a frame
+	private Stream[] streams = new Stream[16]; // index by id
+	private Stream[] readys = new Stream[16];  // streams with sndq not empty
+	private int nready;
+	private int rr;            // round robin cursor of 'readys'
+	private final byte[] sbuf; // frame to send
+	private byte[] rbuf;       // frame received
+
+	/**
+	 * @param kcp in message mode, the same 'window' on both sides
+	 * @param window initial credit of each stream in bytes, also the max message size, eg. 64K
+	 * @param queue max segments in Kcp send queue (waitsnd) before scheduling more, eg. snd_wnd
+	 */
+	public KcpMux(final Kcp kcp, final int window, final int queue) {
+		if (kcp.stream())
+			throw new IllegalArgumentException("stream mode");
+		if (kcp.mss() <= HEAD_MAX)
+			throw new IllegalArgumentException("mss=" + kcp.mss());
+		if (window <= 0 || queue <= 0)
+			throw new IllegalArgumentException("window=" + window + ",queue=" + queue);
+		this.kcp = kcp;
+		this.window = window;
+		this.queue = queue;
+		frame = kcp.mss() - HEAD_MAX;
+		sbuf = new byte[kcp.mss()];
+		rbuf = new byte[kcp.mss()];
+	}
+
+	/**
+	 * a received message of 'stream', data[pos,pos+len) is only valid in it
+	 */
+	protected abstract void received(Stream stream, byte[] data, int pos, int len);
+
+	public final Kcp kcp() { // const
+		return kcp;
+	}
+
+	/**
+	 * get or open the stream of 'id' [0,MAX_STREAMS)
+	 */
+	public final Stream stream(final int id) {
+		if (id < 0 || id >= MAX_STREAMS)
+			throw new IllegalArgumentException("id=" + id);
+		if (id >= streams.length)
+			streams = Arrays.copyOf(streams, Math.min(Math.max(streams.length * 2, id + 1), MAX_STREAMS));
+		Stream s = streams[id];
+		if (s == null)
+			streams[id] = s = new Stream(id);
+		return s;
+	}
+
+	private static int putvarint(final byte[] buf, int pos, int v) { // returns the end
+		for (; (v & ~0x7f) != 0; v >>>= 7)
+			buf[pos++] = (byte)(v | 0x80);
+		buf[pos++] = (byte)v;
+		return pos;
+	}
+
+	private static boolean sendable(final Stream s) { // const
+		return s.credit > 0 || s.sndq.peek().length == s.snd_off; // an empty rest needs no credit
+	}
+
+	private Stream pick() {
+		final Stream[] readys = this.readys;
+		final int n = nready;
+		int best = Integer.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			final Stream s = readys[i];
+			if (s.priority < best && sendable(s))
+				best = s.priority;
+		}
+		if (best == Integer.MAX_VALUE)
+			return null;
+		for (int i = rr < n ? rr : 0; ; i = i + 1 < n ? i + 1 : 0) { // ends in 2 rounds: a quantum >= a frame
+			final Stream s = readys[i];
+			if (s.priority != best || !sendable(s))
+				continue;
+			if (s.deficit > 0) {
+				rr = i;
+				return s;
+			}
+			s.deficit += s.weight * frame;
+		}
+	}
+
+	/**
+	 * move frames of ready streams into Kcp while its send queue is below 'queue', returns the count of frames.
+	 * call it after send and recv (credits arrived), and before Kcp.update
+	 */
+	public final int schedule() {
+		int frames = 0;
+		for (Stream s; kcp.waitsnd() < queue && (s = pick()) != null; frames++) {
+			final byte[] m = s.sndq.peek();
+			final int left = m.length - s.snd_off;
+			final int n = Math.min(Math.min(left, frame), s.credit);
+			final boolean end = n == left;
+			final byte[] buf = sbuf;
+			buf[0] = (byte)(FRAME_DATA | (end ? FLAG_END : 0));
+			final int p = putvarint(buf, 1, s.id);
+			System.arraycopy(m, s.snd_off, buf, p, n);
+			kcp.send(buf, 0, p + n);
+			s.credit -= n;
+			s.deficit -= Math.max(n, 1);
+			s.npending -= n;
+			s.snd_off += n;
+			if (end) {
+				s.sndq.poll();
+				s.snd_off = 0;
+				if (s.sndq.isEmpty()) { // leave the round
+					s.ready = false;
+					s.deficit = 0;
+					final int i = rr;
+					readys[i] = readys[--nready];
+					readys[nready] = null;
+				}
+			}
+			if (s.ready && s.deficit <= 0)
+				rr++;
+		}
+		return frames;
+	}
+
+	private void send_credit(final Stream s, final int n) {
+		final byte[] buf = sbuf;
+		buf[0] = (byte)FRAME_CREDIT;
+		kcp.send(buf, 0, putvarint(buf, putvarint(buf, 1, s.id), n));
+		s.rcv_left += n;
+	}
+
+	private static int getvarint(final byte[] buf, int pos, final int end) { // returns -1 for error
+		for (int v = 0, shift = 0; pos < end && shift < 32; shift += 7) {
+			final int b = buf[pos++];
+			v |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return v >= 0 ? v : -1;
+		}
+		return -1;
+	}
+
+	private static int varint_size(final int v) { // const
+		return v < 0x80 ? 1 : v < 0x4000 ? 2 : v < 0x200000 ? 3 : v < 0x10000000 ? 4 : 5;
+	}
+
+	/**
+	 * receive all messages from Kcp and call 'received', returns the count of messages,
+	 * returns below zero for a bad frame (-3) or flow control violation (-4) from the remote
+	 */
+	public final int recv() {
+		int count = 0;
+		for (;;) {
+			int len = kcp.recv(rbuf, 0, rbuf.length);
+			if (len == -4) {
+				rbuf = new byte[kcp.peeksize()];
+				len = kcp.recv(rbuf, 0, rbuf.length);
+			}
+			if (len < 0)
+				return count;
+			final byte[] buf = rbuf;
+			if (len < 2)
+				return -3;
+			final int type = buf[0] & 0xff;
+			final int id = getvarint(buf, 1, len);
+			if (id < 0 || id >= MAX_STREAMS)
+				return -3;
+			final Stream s = stream(id);
+			final int p = 1 + varint_size(id);
+			if ((type & 0x7f) == FRAME_CREDIT) {
+				final int n = getvarint(buf, p, len);
+				if (n < 0)
+					return -3;
+				s.credit = (int)Math.min((long)s.credit + n, Integer.MAX_VALUE);
+				continue;
+			}
+			if ((type & 0x7f) != FRAME_DATA)
+				return -3;
+			final int n = len - p;
+			if (n > s.rcv_left)
+				return -4;
+			s.rcv_left -= n;
+			if ((type & FLAG_END) != 0 && s.rlen == 0) {
+				received(s, buf, p, n);
+				s.rcv_used += n;
+				count++;
+			} else {
+				if (s.rbuf == null || s.rlen + n > s.rbuf.length) // rlen <= window: not credited until consumed
+					s.rbuf = Arrays.copyOf(s.rbuf != null ? s.rbuf : new byte[0], Math.min(Math.max(s.rlen + n,
+							Math.max(s.rbuf != null ? s.rbuf.length * 2 : 0, frame * 2)), window));
+				System.arraycopy(buf, p, s.rbuf, s.rlen, n);
+				s.rlen += n;
+				if ((type & FLAG_END) != 0) {
+					final int m = s.rlen;
+					s.rlen = 0;
+					received(s, s.rbuf, 0, m);
+					s.rcv_used += m;
+					count++;
+				}
+			}
+			// the remote out of credit waits for the consumed bytes, or for the rest of a partial message
+			if (s.rcv_used > 0 && (s.rcv_used >= (window + 1) / 2 || s.rcv_left == 0)) {
+				send_credit(s, s.rcv_used);
+				s.rcv_used = 0;
+			}
+		}
+	}
+}
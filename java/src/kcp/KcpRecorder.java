@@ -0,0 +1,160 @@
+package kcp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Flight recorder of protocol events (set by Kcp.recorder), a fixed ring of binary records, the oldest are overwritten.
+ * <li>record is O(1) without allocation or formatting, so it can stay on in production (unlike logmask).
+ * <li>one instance per session, or shared by all sessions of a thread (records carry 'conv'). not thread-safe.
+ * <li>dump after a stall (eg. in KcpServer.expire), or write to a file and decode it later by main.
+ * <p>record is not final, a subclass can forward events elsewhere (eg. JFR custom events on newer JDK).
+ */
+public class KcpRecorder {
+	public static final int EV_OUT = 0;  // segment encoded by flush
+	public static final int EV_IN = 1;   // segment decoded by input
+	public static final int EV_RECV = 2; // message moved out by recv, 'sn' of its first segment
+	private static final int MAGIC = 0x4b435052; // "KCPR"
+	private static final int FIELDS = 8;  // ints per record
+	private static final String[] EVENTS = {"out", "in", "recv"};
+	private final int[] ring; // records: current, conv, ev<<24|cmd<<16|wnd, sn, ts, una, rto, xmit<<16|len
+	private final int mask;   // records - 1
+	private long total;       // records ever written
+
+	/**
+	 * @param capacity max records kept, round up to power of 2
+	 */
+	public KcpRecorder(final int capacity) {
+		int n = 16;
+		while (n < capacity)
+			n <<= 1;
+		ring = new int[n * FIELDS];
+		mask = n - 1;
+	}
+
+	public final int capacity() { // const
+		return mask + 1;
+	}
+
+	public final long total() { // const
+		return total;
+	}
+
+	public final int size() { // const
+		return (int)Math.min(total, mask + 1);
+	}
+
+	public final void clear() {
+		total = 0;
+	}
+
+	/**
+	 * @param wnd uint16_t
+	 * @param xmit transmit count for EV_OUT of data, saturated at 0xffff
+	 * @param len saturated at 0xffff
+	 */
+	public void record(final int current, final int conv, final int ev, final int cmd, final int sn, final int ts,
+					   final int una, final int wnd, final int rto, final int xmit, final int len) {
+		final int[] ring = this.ring;
+		final int p = (int)(total++ & mask) * FIELDS;
+		ring[p] = current;
+		ring[p + 1] = conv;
+		ring[p + 2] = (ev << 24) | ((cmd & 0xff) << 16) | (wnd & 0xffff);
+		ring[p + 3] = sn;
+		ring[p + 4] = ts;
+		ring[p + 5] = una;
+		ring[p + 6] = rto;
+		ring[p + 7] = (Math.min(xmit, 0xffff) << 16) | Math.min(len, 0xffff);
+	}
+
+	private static String cmdName(final int cmd) {
+		switch (cmd) {
+		case Kcp.IKCP_CMD_PUSH:
+			return "push";
+		case Kcp.IKCP_CMD_ACK:
+			return "ack";
+		case Kcp.IKCP_CMD_WASK:
+			return "wask";
+		case Kcp.IKCP_CMD_WINS:
+			return "wins";
+		case Kcp.IKCP_CMD_SACK:
+			return "sack";
+		case Kcp.IKCP_CMD_COMPACT:
+			return "cpkt";
+		default:
+			return String.valueOf(cmd);
+		}
+	}
+
+	private static void print(final PrintStream out, final int[] r, final int p) {
+		final int ev = r[p + 2] >>> 24;
+		out.printf("%10d conv=%d %-4s %-4s sn=%d ts=%d una=%d wnd=%d rto=%d xmit=%d len=%d%n", r[p] & 0xffffffffL,
+				r[p + 1], ev < EVENTS.length ? EVENTS[ev] : String.valueOf(ev), cmdName((r[p + 2] >> 16) & 0xff),
+				r[p + 3], r[p + 4], r[p + 5], r[p + 2] & 0xffff, r[p + 6], r[p + 7] >>> 16, r[p + 7] & 0xffff);
+	}
+
+	/**
+	 * print kept records from the oldest, only those of 'conv' if 'conv' is not null
+	 */
+	public final void dump(final PrintStream out, final Integer conv) { // const
+		final int n = size();
+		out.printf("kcp recorder: %d records (%d total)%n", n, total);
+		for (long i = total - n; i < total; i++) {
+			final int p = (int)(i & mask) * FIELDS;
+			if (conv == null || ring[p + 1] == conv)
+				print(out, ring, p);
+		}
+	}
+
+	/**
+	 * write kept records from the oldest in binary, see main
+	 */
+	public final void write(final OutputStream os) throws IOException { // const
+		final DataOutputStream dos = new DataOutputStream(os);
+		final int n = size();
+		dos.writeInt(MAGIC);
+		dos.writeInt(FIELDS);
+		dos.writeInt(n);
+		for (long i = total - n; i < total; i++) {
+			final int p = (int)(i & mask) * FIELDS;
+			for (int j = 0; j < FIELDS; j++)
+				dos.writeInt(ring[p + j]);
+		}
+		dos.flush();
+	}
+
+	/**
+	 * decode a file from write: java kcp.KcpRecorder file [conv]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: java kcp.KcpRecorder file [conv]");
+			return;
+		}
+		final Integer conv = args.length > 1 ? Integer.valueOf(args[1]) : null;
+		final InputStream is = new FileInputStream(args[0]);
+		try {
+			final DataInputStream dis = new DataInputStream(is);
+			if (dis.readInt() != MAGIC)
+				throw new IOException("not a kcp recorder file: " + args[0]);
+			final int fields = dis.readInt(), n = dis.readInt();
+			if (fields < FIELDS)
+				throw new IOException("bad record size: " + fields);
+			final int[] r = new int[fields];
+			System.out.printf("kcp recorder: %d records%n", n);
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < fields; j++)
+					r[j] = dis.readInt();
+				if (conv == null || r[1] == conv)
+					print(System.out, r, 0);
+			}
+		} finally {
+			is.close();
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package kcp;
+
+/**
+ * The classic KCP congestion control (Reno-like), default of Kcp.
+ * <li>slow start by one segment per ack until ssthresh, then additive increase by bytes ('incr').
+ * <li>timeout: ssthresh=wnd/2, cwnd=1. fast resend: ssthresh=inflight/2, cwnd=ssthresh+resend.
+ * <li>a batched input grows it once per input which advanced snd_una.
+ */
+public class KcpReno extends KcpCongestion {
+	private int incr; // uint32_t, cwnd in bytes with fraction
+
+	@Override
+	public void init(final int mss, final int current) {
+		super.init(mss, current);
+		incr = mss;
+	}
+
+	@Override
+	public void acked(final int current, final int una, final int acked, final int inflight, final int rmt_wnd) {
+		if (una <= 0 || cwnd >= rmt_wnd)
+			return;
+		final int mss = this.mss;
+		if (cwnd < ssthresh) {
+			cwnd++;
+			incr += mss;
+		} else {
+			if (incr < mss)
+				incr = mss;
+			incr += mss * mss / incr + mss / 16;
+			if ((cwnd + 1) * mss <= incr)
+				cwnd = (incr + mss - 1) / mss;
+		}
+		if (cwnd > rmt_wnd) {
+			cwnd = rmt_wnd;
+			incr = rmt_wnd * mss;
+		}
+	}
+
+	@Override
+	public void ackedBatch(final int current, final int una, final int acked, final int inflight, final int rmt_wnd,
+			final int packets) {
+		for (int i = Math.max(packets, 1); i > 0; i--) // grows per acknowledging input, the same as without batch
+			acked(current, una, acked, inflight, rmt_wnd);
+	}
+
+	@Override
+	public void timeout(final int current, final int wnd, final int inflight) {
+		ssthresh = Math.max(wnd / 2, Kcp.IKCP_THRESH_MIN);
+		cwnd = 1;
+		incr = mss;
+	}
+
+	@Override
+	public void fastResend(final int current, final int inflight, final int resend) {
+		ssthresh = Math.max(inflight / 2, Kcp.IKCP_THRESH_MIN);
+		cwnd = Math.max(ssthresh + resend, 1);
+		incr = cwnd * mss;
+	}
+}
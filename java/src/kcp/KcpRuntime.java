@@ -0,0 +1,443 @@
+package kcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sharded multi-thread runtime for KCP sessions.
+ * <li>each 'conv' is pinned to one of N loop threads by hash, the loop owns its sessions (KcpServer) and output buffer.
+ * <li>'input/send/execute' from any thread reach the owning loop through a bounded lock-free MPSC ring of pooled tasks,
+ * data is copied into the reusable array of a task, no allocation per call after warm up.
+ * <li>session code (Kcp.input/flush/recv and all callbacks) always runs on its loop thread without locking.
+ * an exception from it goes to 'error' and the loop goes on.
+ * <p>Usage: new->start; input(from transport)->received(on loop); send(from any thread)->output(on loop); stop
+ */
+public abstract class KcpRuntime<K extends Kcp> {
+	private static final int TASK_INPUT = 0;
+	private static final int TASK_SEND = 1;
+	private static final int TASK_RUN = 2;
+	public static final int QUEUE_DEF = 4096;   // tasks per loop
+	public static final int DATA_KEEP = 0x10000; // larger data arrays are not kept in tasks
+
+	private static final class Task {
+		volatile int seq; // == ticket: free for the producer of it, == ticket+1: published for the consumer
+		int type;
+		int conv;
+		byte[] data;      // reused
+		int len;
+		ByteBuffer bbuf;  // input without copy, then 'run' is called
+		Object peer;
+		Runnable run;
+
+		void copy(final byte[] buf, final int pos, final int len) {
+			byte[] d = data;
+			if (d == null || d.length < len)
+				data = d = new byte[len];
+			System.arraycopy(buf, pos, d, 0, len);
+			this.len = len;
+		}
+	}
+
+	public final class Loop extends KcpServer<K> implements Runnable {
+		private final int index;
+		private final byte[] buffer;
+		private final Task[] tasks;    // ring, length is power of 2
+		private final AtomicInteger tail = new AtomicInteger(); // next ticket to claim
+		private int head;              // next ticket to consume, loop thread only
+		private Runnable[] locals = new Runnable[16]; // ring of 'execute' on loop thread, length is power of 2
+		private int[] localConvs = new int[16];      // parallel to locals
+		private int localHead;
+		private int localSize;
+		private Thread thread;
+		private Object peer;
+		private final AtomicInteger idle = new AtomicInteger(); // 1: parked or about to park
+		private volatile boolean running;
+
+		Loop(final int index, final int mtu, final int tick, final int queue) {
+			super(now(), tick);
+			this.index = index;
+			buffer = new byte[mtu];
+			int n = 2;
+			while (n < queue)
+				n <<= 1;
+			tasks = new Task[n];
+			for (int i = 0; i < n; i++) {
+				final Task task = new Task();
+				task.seq = i;
+				tasks[i] = task;
+			}
+		}
+
+		public int index() { // const
+			return index;
+		}
+
+		/**
+		 * shared output buffer for sessions of this loop, pass it to Kcp constructor in 'accept'
+		 */
+		public byte[] buffer() { // const
+			return buffer;
+		}
+
+		public boolean inLoop() { // const
+			return Thread.currentThread() == thread;
+		}
+
+		/**
+		 * source address of the packet being input, only valid in 'accept' and 'received'
+		 */
+		public Object peer() { // const
+			return peer;
+		}
+
+		@Override
+		protected K accept(final int conv, final int current) {
+			return KcpRuntime.this.accept(this, conv, current);
+		}
+
+		@Override
+		protected void expire(final K kcp) {
+			try {
+				KcpRuntime.this.expire(kcp);
+			} catch (final Throwable e) {
+				KcpRuntime.this.error(kcp.conv(), e);
+			}
+		}
+
+		@Override
+		protected void error(final K kcp, final Throwable e) {
+			KcpRuntime.this.error(kcp.conv(), e);
+		}
+
+		Task claim() { // any thread, returns null if the ring is full, fill it and offer
+			final Task[] tasks = this.tasks;
+			final int mask = tasks.length - 1;
+			for (; ; ) {
+				final int t = tail.get();
+				final Task task = tasks[t & mask];
+				final int d = task.seq - t;
+				if (d == 0) {
+					if (tail.compareAndSet(t, t + 1))
+						return task;
+				} else if (d < 0)
+					return null; // not consumed yet since the last round
+			}
+		}
+
+		Task claimWait() { // any thread but loop, waits for a free task, returns null if not running
+			for (; ; ) {
+				final Task task = claim();
+				if (task != null || !running)
+					return task;
+				Thread.yield();
+			}
+		}
+
+		void offer(final Task task) { // the claiming thread
+			task.seq++; // volatile write before reading 'idle', pairs with the recheck in run
+			if (idle.get() != 0 && idle.compareAndSet(1, 0))
+				LockSupport.unpark(thread);
+		}
+
+		private Task poll() { // loop thread only
+			final Task task = tasks[head & (tasks.length - 1)];
+			return task.seq == head + 1 ? task : null;
+		}
+
+		private void free(final Task task) { // loop thread only, after poll
+			peer = null;
+			if (task.data != null && task.data.length > DATA_KEEP)
+				task.data = null;
+			task.bbuf = null;
+			task.peer = null;
+			task.run = null;
+			task.seq = head + tasks.length; // ticket of the next round
+			head++;
+		}
+
+		private void process(final Task task) {
+			if (task.type == TASK_RUN) {
+				task.run.run();
+				return;
+			}
+			if (task.type == TASK_INPUT) {
+				peer = task.peer;
+				final int r;
+				if (task.bbuf != null) {
+					try {
+						r = input(task.bbuf);
+					} finally {
+						task.run.run();
+					}
+				} else
+					r = input(task.data, 0, task.len);
+				if (r >= 0) {
+					final K kcp = get(task.conv);
+					if (kcp != null)
+						received(kcp);
+				}
+			} else {
+				final K kcp = get(task.conv);
+				if (kcp != null)
+					kcp.send(task.data, 0, task.len);
+			}
+		}
+
+		void addLocal(final int conv, final Runnable run) { // loop thread only
+			if (localSize == locals.length) { // unroll the ring from localHead
+				final int n = localSize;
+				final Runnable[] rs = new Runnable[n * 2];
+				final int[] cs = new int[n * 2];
+				System.arraycopy(locals, localHead, rs, 0, n - localHead);
+				System.arraycopy(locals, 0, rs, n - localHead, localHead);
+				System.arraycopy(localConvs, localHead, cs, 0, n - localHead);
+				System.arraycopy(localConvs, 0, cs, n - localHead, localHead);
+				locals = rs;
+				localConvs = cs;
+				localHead = 0;
+			}
+			final int i = (localHead + localSize++) & (locals.length - 1);
+			locals[i] = run;
+			localConvs[i] = conv;
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				for (Task task; (task = poll()) != null; ) {
+					try {
+						process(task);
+					} catch (final Throwable e) {
+						KcpRuntime.this.error(task.conv, e);
+					} finally {
+						free(task);
+					}
+				}
+				while (localSize > 0) {
+					final int i = localHead;
+					final Runnable run = locals[i];
+					final int conv = localConvs[i];
+					locals[i] = null;
+					localHead = (i + 1) & (locals.length - 1);
+					localSize--;
+					try {
+						run.run();
+					} catch (final Throwable e) {
+						KcpRuntime.this.error(conv, e);
+					}
+				}
+				final int current = now();
+				update(current);
+				final int wait = check(current) - current;
+				if (wait <= 0)
+					continue;
+				idle.set(1);
+				if (poll() == null && running) // recheck after publishing idle
+					LockSupport.parkNanos(this, wait * 1000000L);
+				idle.set(0);
+			}
+		}
+	}
+
+	private final Loop[] loops;
+
+	/**
+	 * @param nloops number of loop threads, <= 0 for available processors
+	 * @param mtu size of output buffer for each loop
+	 * @param tick timing wheel slot duration in millisec, see KcpServer
+	 */
+	public KcpRuntime(final int nloops, final int mtu, final int tick) {
+		this(nloops, mtu, tick, QUEUE_DEF);
+	}
+
+	/**
+	 * @param queue max tasks waiting for each loop (rounded up to power of 2), input is dropped beyond it
+	 */
+	public KcpRuntime(int nloops, final int mtu, final int tick, final int queue) {
+		if (nloops <= 0)
+			nloops = Runtime.getRuntime().availableProcessors();
+		@SuppressWarnings("unchecked")
+		final Loop[] loops = (Loop[])new KcpRuntime<?>.Loop[nloops];
+		for (int i = 0; i < nloops; i++)
+			loops[i] = new Loop(i, mtu, tick, queue);
+		this.loops = loops;
+	}
+
+	public static int now() {
+		return (int)(System.nanoTime() / 1000000);
+	}
+
+	/**
+	 * create a session on its loop thread, use loop.buffer() as Kcp output buffer. returns null to drop the packet
+	 */
+	protected abstract K accept(Loop loop, int conv, int current);
+
+	/**
+	 * called on loop thread when a session is removed because of 'lost'
+	 */
+	protected void expire(@SuppressWarnings("unused") K kcp) {
+	}
+
+	/**
+	 * called on loop thread after a packet was input to the session, drain it by Kcp.recv
+	 */
+	protected abstract void received(K kcp);
+
+	/**
+	 * called on loop thread when the input, send or 'execute' task of 'conv', or a callback of its session throws.
+	 * the loop goes on, does nothing by default (eg. log it, or remove the session)
+	 */
+	protected void error(@SuppressWarnings("unused") int conv, @SuppressWarnings("unused") Throwable e) {
+	}
+
+	public final int loopCount() { // const
+		return loops.length;
+	}
+
+	public final Loop loop(final int conv) { // const
+		return loops[(KcpServer.hash(conv) >>> 1) % loops.length];
+	}
+
+	public final void start(final String name) {
+		for (final Loop loop : loops) {
+			loop.running = true;
+			loop.thread = new Thread(loop, name + '-' + loop.index);
+			loop.thread.setDaemon(true);
+			loop.thread.start();
+		}
+	}
+
+	/**
+	 * stop and join the loop threads, nothing to do if not started
+	 */
+	public final void stop() throws InterruptedException {
+		for (final Loop loop : loops) {
+			loop.running = false;
+			if (loop.thread != null)
+				LockSupport.unpark(loop.thread);
+		}
+		for (final Loop loop : loops)
+			if (loop.thread != null)
+				loop.thread.join();
+	}
+
+	/**
+	 * when you received a low level packet (eg. UDP packet) on any thread, call it. the data is copied.
+	 * returns below zero for error, -3 for dropped because the loop is overloaded (its queue is full)
+	 */
+	public final int input(final byte[] buf, final int pos, final int len) {
+		return input(buf, pos, len, null);
+	}
+
+	/**
+	 * same as input(buf, pos, len), 'peer' (eg. source address) is available by Loop.peer() on loop thread
+	 */
+	public final int input(final byte[] buf, final int pos, final int len, final Object peer) {
+		if (buf == null || len < Kcp.IKCP_PACKET_MIN)
+			return -1;
+		final int conv = Kcp.decode32u(buf, pos);
+		final Loop loop = loop(conv);
+		final Task task = loop.claim();
+		if (task == null)
+			return -3;
+		task.type = TASK_INPUT;
+		task.conv = conv;
+		task.copy(buf, pos, len);
+		task.peer = peer;
+		loop.offer(task);
+		return 0;
+	}
+
+	/**
+	 * same as input(buf, pos, len, peer) for the remaining bytes of 'buf' (heap or direct), position is not changed
+	 */
+	public final int input(final ByteBuffer buf, final Object peer) {
+		final int pos = buf.position(), len = buf.remaining();
+		if (len < Kcp.IKCP_PACKET_MIN)
+			return -1;
+		final int conv = (buf.get(pos) & 0xff) | ((buf.get(pos + 1) & 0xff) << 8) |
+				((buf.get(pos + 2) & 0xff) << 16) | (buf.get(pos + 3) << 24);
+		final Loop loop = loop(conv);
+		final Task task = loop.claim();
+		if (task == null)
+			return -3;
+		byte[] d = task.data;
+		if (d == null || d.length < len)
+			task.data = d = new byte[len];
+		buf.get(d, 0, len);
+		buf.position(pos);
+		task.type = TASK_INPUT;
+		task.conv = conv;
+		task.len = len;
+		task.peer = peer;
+		loop.offer(task);
+		return 0;
+	}
+
+	/**
+	 * same as input(buf, peer) without copy: 'buf' is input to Kcp on the loop thread, then done.run() is called there
+	 * (eg. to return 'buf' to its pool). if it returns below zero, 'done' is not called and the caller still owns 'buf'
+	 */
+	public final int input(final ByteBuffer buf, final Object peer, final Runnable done) {
+		final int pos = buf.position();
+		if (buf.remaining() < Kcp.IKCP_PACKET_MIN)
+			return -1;
+		final int conv = (buf.get(pos) & 0xff) | ((buf.get(pos + 1) & 0xff) << 8) |
+				((buf.get(pos + 2) & 0xff) << 16) | (buf.get(pos + 3) << 24);
+		final Loop loop = loop(conv);
+		final Task task = loop.claim();
+		if (task == null)
+			return -3;
+		task.type = TASK_INPUT;
+		task.conv = conv;
+		task.bbuf = buf;
+		task.peer = peer;
+		task.run = done;
+		loop.offer(task);
+		return 0;
+	}
+
+	/**
+	 * user/upper level send from any thread, the data is copied and sent on the loop thread (at once if called on it).
+	 * waits while the queue of the loop is full. returns below zero for error, -3 for not running,
+	 * -4 for no session of 'conv' (only known on the loop thread, dropped there if called on others)
+	 */
+	public final int send(final int conv, final byte[] buf, final int pos, final int len) {
+		if (len < 0)
+			return -1;
+		final Loop loop = loop(conv);
+		if (loop.inLoop()) {
+			final K kcp = loop.get(conv);
+			return kcp != null ? kcp.send(buf, pos, len) : -4;
+		}
+		final Task task = loop.claimWait();
+		if (task == null)
+			return -3;
+		task.type = TASK_SEND;
+		task.conv = conv;
+		task.copy(buf, pos, len);
+		loop.offer(task);
+		return 0;
+	}
+
+	/**
+	 * run a task on the loop thread owning 'conv', after the current task if called on it.
+	 * waits while the queue of the loop is full. returns false for not running
+	 */
+	public final boolean execute(final int conv, final Runnable run) {
+		final Loop loop = loop(conv);
+		if (loop.inLoop()) {
+			loop.addLocal(conv, run);
+			return true;
+		}
+		final Task task = loop.claimWait();
+		if (task == null)
+			return false;
+		task.type = TASK_RUN;
+		task.conv = conv;
+		task.run = run;
+		loop.offer(task);
+		return true;
+	}
+}
@@ -1,5 +1,7 @@
 package kcp;
 
+import java.nio.ByteBuffer;
+
 public final class KcpSeg {
 	private KcpSeg prev;
 	private KcpSeg next;
@@ -10,25 +12,96 @@ public final class KcpSeg {
 	int sn;
 	int una;
 	int len;
-	int resendts;
-	int rto;
-	int fastack;
-	int xmit;
 	final byte[] data;
+	final ByteBuffer buf; // off-heap payload (chunk of KcpSlab) if data is null
+	KcpBuf ref; // send data is ref.data[off,off+len) if not null, see Kcp.send(KcpBuf,int,int)
+	int off;
 
 	KcpSeg() {
 		prev = this;
 		next = this;
 		data = null;
+		buf = null;
 	}
 
 	public KcpSeg(int capacity) {
 		data = new byte[capacity];
+		buf = null;
+	}
+
+	KcpSeg(final ByteBuffer buf) { // only for KcpSlab, 'buf' is owned by the segment
+		data = null;
+		this.buf = buf;
 	}
 
 	public int capacity() {
-		assert data != null;
-		return data.length;
+		assert data != null || buf != null;
+		return data != null ? data.length : buf.capacity();
+	}
+
+	byte get(final int i) {
+		return data != null ? data[i] : buf.get(i);
+	}
+
+	void get(final int off, final byte[] dst, final int pos, final int n) {
+		if (data != null)
+			System.arraycopy(data, off, dst, pos, n);
+		else {
+			buf.position(off);
+			buf.get(dst, pos, n);
+		}
+	}
+
+	void get(final int off, final ByteBuffer dst, final int n) { // put to dst at its position
+		if (data != null)
+			dst.put(data, off, n);
+		else {
+			buf.limit(off + n);
+			buf.position(off);
+			dst.put(buf);
+			buf.clear();
+		}
+	}
+
+	void put(final int off, final byte[] src, final int pos, final int n) {
+		if (data != null)
+			System.arraycopy(src, pos, data, off, n);
+		else {
+			buf.position(off);
+			buf.put(src, pos, n);
+		}
+	}
+
+	void put(final int off, final ByteBuffer src, final int n) { // get from src at its position
+		if (data != null)
+			src.get(data, off, n);
+		else {
+			final int limit = src.limit();
+			src.limit(src.position() + n);
+			buf.position(off);
+			buf.put(src);
+			src.limit(limit);
+		}
+	}
+
+	void put(final int i, final byte b) {
+		if (data != null)
+			data[i] = b;
+		else
+			buf.put(i, b);
+	}
+
+	void put(final int off, final KcpSeg src, final int n) { // copy src[0,n)
+		put(off, src, 0, n);
+	}
+
+	void put(final int off, final KcpSeg src, final int spos, final int n) { // copy src[spos,spos+n)
+		if (src.data != null)
+			put(off, src.data, spos, n);
+		else {
+			src.buf.position(spos);
+			put(off, src.buf, n);
+		}
 	}
 
 	boolean isEmpty() {
@@ -0,0 +1,240 @@
+package kcp;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * Size-classed KcpSeg pool with bounded per-thread caches and an optional shared tier, used by Kcp.allocSeg by default.
+ * <li>capacity classes: 0, 16, 24, 32, 48, 64, 96 ... 32768 (steps of 2^n and 1.5*2^n), larger segments are not pooled.
+ * <li>alloc/free run on the per-thread cache without locking, the shared tier is locked only to refill/spill a batch.
+ * <li>counters are kept per thread and summed on read (approximate while other threads are running).
+ * <li>the cache of a terminated thread is spilled to the shared tier (the rest dropped) and removed when another thread
+ * creates its cache or counters are read, so short-lived threads (eg. freeing by KcpMsg.release) do not leak.
+ */
+public final class KcpSegPool {
+	public static final int NCLASS = 24;
+	public static final int MAX_CAPACITY = 32768;
+	public static final KcpSegPool DEFAULT = new KcpSegPool(256, 4096);
+
+	private final class Cache {
+		final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+		final KcpSeg[][] segs = new KcpSeg[NCLASS][];
+		final int[] counts = new int[NCLASS];
+		long hits;
+		long misses;
+		long allocs;
+		long frees;
+
+		Cache() {
+			for (int i = 0; i < NCLASS; i++)
+				segs[i] = new KcpSeg[localLimit];
+		}
+
+		boolean dead() { // const
+			final Thread t = owner.get();
+			return t == null || !t.isAlive(); // happens-after all actions of the terminated owner
+		}
+	}
+
+	private final int localLimit;  // max segments per class per thread
+	private final int sharedLimit; // max segments per class in shared tier, 0 for disabled
+	private final KcpSeg[][] shared = new KcpSeg[NCLASS][];
+	private final int[] sharedCounts = new int[NCLASS];
+	private final ArrayList<Cache> caches = new ArrayList<Cache>(); // of live threads, and dead ones not reclaimed yet
+	private long deadHits;    // counters of reclaimed caches, locked by 'caches'
+	private long deadMisses;
+	private long deadAllocs;
+	private long deadFrees;
+	private final ThreadLocal<Cache> local = new ThreadLocal<Cache>() {
+		@Override
+		protected Cache initialValue() {
+			final Cache cache = new Cache();
+			synchronized (caches) {
+				reclaim();
+				caches.add(cache);
+			}
+			return cache;
+		}
+	};
+
+	public KcpSegPool(final int localLimit, final int sharedLimit) {
+		this.localLimit = Math.max(localLimit, 2);
+		this.sharedLimit = Math.max(sharedLimit, 0);
+		for (int i = 0; i < NCLASS; i++)
+			shared[i] = new KcpSeg[this.sharedLimit];
+	}
+
+	/**
+	 * capacity of class 'k'
+	 */
+	public static int capacity(final int k) {
+		if (k <= 0)
+			return 0;
+		final int base = 16 << ((k - 1) >> 1);
+		return (k & 1) != 0 ? base : base + (base >> 1);
+	}
+
+	/**
+	 * smallest class for 'size', NCLASS if too large
+	 */
+	public static int classOf(final int size) {
+		if (size <= 16)
+			return size <= 0 ? 0 : 1;
+		if (size > MAX_CAPACITY)
+			return NCLASS;
+		final int hb = 31 - Integer.numberOfLeadingZeros(size - 1); // 2^hb < size <= 2^(hb+1)
+		return size <= 3 << (hb - 1) ? (hb - 4) * 2 + 2 : (hb - 3) * 2 + 1;
+	}
+
+	public KcpSeg alloc(final int size) {
+		final int k = classOf(size);
+		final Cache cache = local.get();
+		cache.allocs++;
+		if (k >= NCLASS) {
+			cache.misses++;
+			return new KcpSeg(size);
+		}
+		int n = cache.counts[k];
+		if (n == 0 && sharedLimit > 0)
+			n = refill(cache, k);
+		if (n > 0) {
+			final KcpSeg[] segs = cache.segs[k];
+			final KcpSeg seg = segs[--n];
+			segs[n] = null;
+			cache.counts[k] = n;
+			cache.hits++;
+			return seg;
+		}
+		cache.misses++;
+		return new KcpSeg(capacity(k));
+	}
+
+	/**
+	 * return a segment, only heap segments with class capacity are kept
+	 */
+	public void free(final KcpSeg seg) {
+		final int capacity = seg.capacity();
+		final int k = classOf(capacity);
+		final Cache cache = local.get();
+		cache.frees++;
+		if (k >= NCLASS || capacity(k) != capacity || seg.data == null)
+			return;
+		seg.ref = null;
+		int n = cache.counts[k];
+		if (n == localLimit) {
+			if (sharedLimit == 0)
+				return;
+			n = spill(cache, k);
+		}
+		cache.segs[k][n] = seg;
+		cache.counts[k] = n + 1;
+	}
+
+	private int refill(final Cache cache, final int k) { // move up to half of local limit from shared tier
+		final KcpSeg[] src = shared[k], dst = cache.segs[k];
+		int n = 0;
+		synchronized (src) {
+			int m = sharedCounts[k];
+			for (final int end = localLimit / 2; n < end && m > 0; n++) {
+				dst[n] = src[--m];
+				src[m] = null;
+			}
+			sharedCounts[k] = m;
+		}
+		return n;
+	}
+
+	private int spill(final Cache cache, final int k) { // move half of local cache to shared tier (drop if full)
+		final KcpSeg[] src = cache.segs[k], dst = shared[k];
+		int n = localLimit;
+		synchronized (dst) {
+			int m = sharedCounts[k];
+			for (final int end = localLimit / 2; n > end; ) {
+				final KcpSeg seg = src[--n];
+				src[n] = null;
+				if (m < sharedLimit)
+					dst[m++] = seg;
+			}
+			sharedCounts[k] = m;
+		}
+		return n;
+	}
+
+	private void reclaim() { // locked by 'caches', spill and remove the caches of terminated threads
+		for (int i = caches.size() - 1; i >= 0; i--) {
+			final Cache cache = caches.get(i);
+			if (!cache.dead())
+				continue;
+			for (int k = 0; k < NCLASS; k++) {
+				final KcpSeg[] src = cache.segs[k], dst = shared[k];
+				int n = cache.counts[k];
+				synchronized (dst) {
+					int m = sharedCounts[k];
+					while (n > 0) {
+						final KcpSeg seg = src[--n];
+						src[n] = null;
+						if (m < sharedLimit)
+							dst[m++] = seg;
+					}
+					sharedCounts[k] = m;
+				}
+				cache.counts[k] = 0;
+			}
+			deadHits += cache.hits;
+			deadMisses += cache.misses;
+			deadAllocs += cache.allocs;
+			deadFrees += cache.frees;
+			final Cache last = caches.remove(caches.size() - 1);
+			if (i < caches.size())
+				caches.set(i, last);
+		}
+	}
+
+	/**
+	 * allocations served from cache
+	 */
+	public long hits() { // const
+		synchronized (caches) {
+			reclaim();
+			long n = deadHits;
+			for (final Cache cache : caches)
+				n += cache.hits;
+			return n;
+		}
+	}
+
+	/**
+	 * allocations created new segment (including the unpooled large ones)
+	 */
+	public long misses() { // const
+		synchronized (caches) {
+			reclaim();
+			long n = deadMisses;
+			for (final Cache cache : caches)
+				n += cache.misses;
+			return n;
+		}
+	}
+
+	/**
+	 * allocated but not freed segments
+	 */
+	public long outstanding() { // const
+		synchronized (caches) {
+			reclaim();
+			long n = deadAllocs - deadFrees;
+			for (final Cache cache : caches)
+				n += cache.allocs - cache.frees;
+			return n;
+		}
+	}
+
+	/**
+	 * threads with a cache, including terminated ones not reclaimed yet
+	 */
+	public int caches() { // const
+		synchronized (caches) {
+			return caches.size();
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package kcp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * KCP session manager for massive connections (single thread, like Kcp).
+ * <li>demultiplex input packets to sessions by 'conv' (open-addressing int map, no boxing).
+ * <li>drive 'update' by a hashed timing wheel keyed on 'check', only due sessions are touched each tick.
+ * <li>expire dead sessions ('lost') in bulk while updating.
+ * <p>Usage: new->input(accept)->update->check; send on session, then wakeup if flushed out of 'update'
+ */
+public abstract class KcpServer<K extends Kcp> {
+	public static final int TICK_DEF = 10;     // wheel slot duration in millisec
+	public static final int SPAN_MIN = 10000;  // wheel covers at least 'check' max distance (interval <= 5000)
+	private final int tick;
+	private final int[] wheel; // slot => first session index, -1 for empty
+	private int wheelSlot;     // slot at wheelTime
+	private int wheelTime;     // uint32_t, start time of wheelSlot
+	private int current;       // uint32_t
+	private Kcp[] sessions = new Kcp[16];
+	private int[] deadline = new int[16]; // uint32_t, parallel to sessions
+	private int[] nextIdx = new int[16];  // parallel to sessions, wheel list or free list
+	private int[] prevIdx = new int[16];  // parallel to sessions, wheel list, -1-slot for list head
+	private int freeIdx = -1;
+	private int nextNew;
+	private int size;
+	private int[] keys = new int[32]; // conv, open-addressing by linear probe, length is power of 2
+	private int[] vals = new int[32]; // session index, -1 for empty
+	private Kcp[] expired = new Kcp[16];
+	private int nexpired;
+
+	public KcpServer(final int current, int tick) {
+		if (tick <= 0)
+			tick = TICK_DEF;
+		int n = 16;
+		while (n * tick < SPAN_MIN)
+			n <<= 1;
+		this.tick = tick;
+		wheel = new int[n];
+		Arrays.fill(wheel, -1);
+		Arrays.fill(vals, -1);
+		wheelTime = current;
+		this.current = current;
+	}
+
+	/**
+	 * create a session for an unknown 'conv' from input, returns null to drop the packet
+	 */
+	protected abstract K accept(int conv, int current);
+
+	/**
+	 * called when a session is removed because of 'lost' in 'update'
+	 */
+	protected void expire(@SuppressWarnings("unused") K kcp) {
+	}
+
+	/**
+	 * called when 'update' of a session throws (eg. from its output), the session is still scheduled.
+	 * rethrows by default, the rest of the due sessions wait for the next 'update'. others go on if it returns
+	 */
+	protected void error(@SuppressWarnings("unused") K kcp, final Throwable e) {
+		if (e instanceof Error)
+			throw (Error)e;
+		throw (RuntimeException)e;
+	}
+
+	public final int size() { // const
+		return size;
+	}
+
+	static int hash(int conv) { // murmur3 fmix32, low bits depend on all bits of conv
+		conv ^= conv >>> 16;
+		conv *= 0x85ebca6b;
+		conv ^= conv >>> 13;
+		conv *= 0xc2b2ae35;
+		return conv ^ (conv >>> 16);
+	}
+
+	private int find(final int conv) { // const, returns session index or -1
+		final int[] keys = this.keys, vals = this.vals;
+		final int mask = keys.length - 1;
+		for (int i = hash(conv) & mask; ; i = (i + 1) & mask) {
+			final int v = vals[i];
+			if (v < 0 || keys[i] == conv)
+				return v;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public final K get(final int conv) { // const
+		final int idx = find(conv);
+		return idx >= 0 ? (K)sessions[idx] : null;
+	}
+
+	private void mapPut(final int conv, final int idx) {
+		if ((size + 1) * 2 > keys.length) {
+			final int[] oldKeys = keys, oldVals = vals;
+			keys = new int[oldKeys.length * 2];
+			vals = new int[oldKeys.length * 2];
+			Arrays.fill(vals, -1);
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldVals[i] >= 0)
+					mapPut0(oldKeys[i], oldVals[i]);
+		}
+		mapPut0(conv, idx);
+	}
+
+	private void mapPut0(final int conv, final int idx) {
+		final int mask = keys.length - 1;
+		int i = hash(conv) & mask;
+		while (vals[i] >= 0)
+			i = (i + 1) & mask;
+		keys[i] = conv;
+		vals[i] = idx;
+	}
+
+	private void mapRemove(final int conv) {
+		final int[] keys = this.keys, vals = this.vals;
+		final int mask = keys.length - 1;
+		int i = hash(conv) & mask;
+		while (keys[i] != conv || vals[i] < 0) {
+			if (vals[i] < 0)
+				return;
+			i = (i + 1) & mask;
+		}
+		// backward shift deletion, keep probe chains without tombstones
+		for (int j = (i + 1) & mask; vals[j] >= 0; j = (j + 1) & mask) {
+			final int h = hash(keys[j]) & mask;
+			if (((j - h) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				vals[i] = vals[j];
+				i = j;
+			}
+		}
+		vals[i] = -1;
+	}
+
+	/**
+	 * add a session created by user, returns false if 'conv' exists
+	 */
+	public final boolean add(final K kcp) {
+		final int conv = kcp.conv();
+		if (find(conv) >= 0)
+			return false;
+		int idx = freeIdx;
+		if (idx >= 0)
+			freeIdx = nextIdx[idx];
+		else {
+			idx = nextNew++;
+			if (idx == sessions.length) {
+				final int n = idx * 2;
+				sessions = Arrays.copyOf(sessions, n);
+				deadline = Arrays.copyOf(deadline, n);
+				nextIdx = Arrays.copyOf(nextIdx, n);
+				prevIdx = Arrays.copyOf(prevIdx, n);
+			}
+		}
+		sessions[idx] = kcp;
+		mapPut(conv, idx);
+		size++;
+		schedule(idx, kcp.check(current));
+		return true;
+	}
+
+	/**
+	 * remove session by 'conv', returns the removed session or null
+	 */
+	public final K remove(final int conv) {
+		final int idx = find(conv);
+		if (idx < 0)
+			return null;
+		@SuppressWarnings("unchecked")
+		final K kcp = (K)sessions[idx];
+		unschedule(idx);
+		release(idx);
+		return kcp;
+	}
+
+	private void release(final int idx) { // the session must be detached from wheel
+		mapRemove(sessions[idx].conv());
+		sessions[idx] = null;
+		nextIdx[idx] = freeIdx;
+		freeIdx = idx;
+		size--;
+	}
+
+	private void schedule(final int idx, int when) {
+		final int span = wheel.length * tick;
+		if (when - wheelTime < 0)
+			when = wheelTime;
+		else if (when - wheelTime >= span)
+			when = wheelTime + span - tick;
+		deadline[idx] = when;
+		final int slot = (wheelSlot + (when - wheelTime) / tick) & (wheel.length - 1);
+		final int head = wheel[slot];
+		nextIdx[idx] = head;
+		prevIdx[idx] = -1 - slot;
+		if (head >= 0)
+			prevIdx[head] = idx;
+		wheel[slot] = idx;
+	}
+
+	private void unschedule(final int idx) {
+		final int prev = prevIdx[idx], next = nextIdx[idx];
+		if (prev >= 0)
+			nextIdx[prev] = next;
+		else
+			wheel[-1 - prev] = next;
+		if (next >= 0)
+			prevIdx[next] = prev;
+	}
+
+	/**
+	 * reschedule a session after calling its 'flush' directly or changing its 'nodelay' interval
+	 */
+	public final void wakeup(final int conv) {
+		final int idx = find(conv);
+		if (idx >= 0) {
+			unschedule(idx);
+			schedule(idx, sessions[idx].check(current));
+		}
+	}
+
+	/**
+	 * when you received a low level packet (eg. UDP packet), call it.
+	 * returns below zero for error, -2 for dropped by 'accept', others from Kcp.input
+	 */
+	public final int input(final byte[] buf, final int pos, final int len) {
+		if (buf == null || len < Kcp.IKCP_PACKET_MIN)
+			return -1;
+		final Kcp kcp = session(Kcp.decode32u(buf, pos));
+		return kcp != null ? kcp.input(buf, pos, len) : -2;
+	}
+
+	/**
+	 * same as above for the remaining bytes of 'buf' (heap or direct), consumed as Kcp.input(ByteBuffer)
+	 */
+	public final int input(final ByteBuffer buf) {
+		final int p = buf.position();
+		if (buf.remaining() < Kcp.IKCP_PACKET_MIN)
+			return -1;
+		final Kcp kcp = session((buf.get(p) & 0xff) | ((buf.get(p + 1) & 0xff) << 8) |
+				((buf.get(p + 2) & 0xff) << 16) | (buf.get(p + 3) << 24));
+		return kcp != null ? kcp.input(buf) : -2;
+	}
+
+	private Kcp session(final int conv) { // only for input, find or accept, returns null if dropped by 'accept'
+		final int idx = find(conv);
+		if (idx >= 0)
+			return sessions[idx];
+		final K kcp = accept(conv, current);
+		return kcp != null && kcp.conv() == conv && add(kcp) ? kcp : null;
+	}
+
+	/**
+	 * returns when you should invoke 'update' in millisec, at slot granularity (only skips empty slots)
+	 */
+	public final int check(final int current) { // const
+		final int mask = wheel.length - 1;
+		for (int i = 0, n = wheel.length; i < n; i++) {
+			if (wheel[(wheelSlot + i) & mask] >= 0) {
+				final int t = wheelTime + i * tick;
+				return t - current > 0 ? t : current;
+			}
+		}
+		return current + wheel.length * tick;
+	}
+
+	/**
+	 * update all due sessions and expire lost sessions, 'current' - current timestamp in millisec.
+	 */
+	public final void update(final int current) {
+		this.current = current;
+		final int mask = wheel.length - 1;
+		try {
+			if (current - wheelTime >= wheel.length * tick) { // clock jumped over the whole wheel, all due
+				int all = -1;
+				for (int slot = 0; slot <= mask; slot++) {
+					for (int idx = wheel[slot], next; idx >= 0; idx = next) {
+						next = nextIdx[idx];
+						nextIdx[idx] = all;
+						all = idx;
+					}
+					wheel[slot] = -1;
+				}
+				wheelSlot = 0;
+				wheelTime = current;
+				fire(all);
+			}
+			while (current - wheelTime >= 0) {
+				final int slot = wheelSlot;
+				final int list = wheel[slot];
+				wheel[slot] = -1;
+				wheelSlot = (slot + 1) & mask;
+				wheelTime += tick;
+				if (list >= 0)
+					fire(list);
+			}
+		} finally {
+			// bulk expire
+			final Kcp[] expired = this.expired;
+			final int n = nexpired;
+			nexpired = 0;
+			for (int i = 0; i < n; i++) {
+				@SuppressWarnings("unchecked")
+				final K kcp = (K)expired[i];
+				expired[i] = null;
+				expire(kcp);
+			}
+		}
+	}
+
+	private void fire(int idx) { // only for update
+		final int current = this.current;
+		for (int next; idx >= 0; idx = next) {
+			next = nextIdx[idx];
+			final Kcp kcp = sessions[idx];
+			if (deadline[idx] - current > 0) { // fall in this slot but not yet
+				schedule(idx, deadline[idx]);
+				continue;
+			}
+			try {
+				kcp.update(current);
+			} catch (final Throwable e) {
+				schedule(idx, kcp.check(current));
+				boolean handled = false;
+				try {
+					@SuppressWarnings("unchecked")
+					final K k = (K)kcp;
+					error(k, e);
+					handled = true;
+				} finally {
+					if (!handled) // keep the rest in the wheel
+						for (int i = next; i >= 0; i = next) {
+							next = nextIdx[i];
+							schedule(i, deadline[i]);
+						}
+				}
+				continue;
+			}
+			if (kcp.lost()) {
+				release(idx);
+				if (nexpired == expired.length)
+					expired = Arrays.copyOf(expired, nexpired * 2);
+				expired[nexpired++] = kcp;
+			} else
+				schedule(idx, kcp.check(current));
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package kcp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Off-heap segment allocator: payloads live in large direct ByteBuffer slabs carved into fixed size chunks.
+ * <li>each chunk gets one KcpSeg (header with its slice) for its whole life and is recycled by free, so heap objects
+ * and GC work follow the peak number of segments, not the traffic, and payload bytes never touch the heap.
+ * <li>segments larger than the chunk, empty ones (KcpBuf references for Kcp.send without copy) or beyond 'maxSlabs'
+ * fall back to KcpSegPool.DEFAULT on heap.
+ * <li>not thread-safe: use one slab per thread (eg. per KcpRuntime.Loop) and plug it into Kcp.allocSeg/freeSeg.
+ * <p>slab memory is kept until the KcpSlab is unreachable, call Kcp.release for removed sessions to recycle chunks.
+ */
+public final class KcpSlab {
+	public static final int SLAB_DEF = 1 << 20; // default slab size in bytes
+	private final int chunk;
+	private final int chunksPerSlab;
+	private final int maxSlabs;
+	private ByteBuffer slab; // the last slab, being carved
+	private int nslabs;
+	private int carved;      // carved chunks in the last slab
+	private KcpSeg[] free = new KcpSeg[64];
+	private int nfree;
+	private long outstanding;
+
+	/**
+	 * @param chunk chunk size, usually Kcp mss (mtu - IKCP_OVERHEAD)
+	 * @param slabSize bytes per slab, <= 0 for SLAB_DEF
+	 * @param maxSlabs max number of slabs, <= 0 for unlimited
+	 */
+	public KcpSlab(final int chunk, int slabSize, final int maxSlabs) {
+		if (chunk <= 0)
+			throw new IllegalArgumentException("chunk=" + chunk);
+		if (slabSize <= 0)
+			slabSize = SLAB_DEF;
+		this.chunk = chunk;
+		chunksPerSlab = Math.max(slabSize / chunk, 1);
+		this.maxSlabs = maxSlabs > 0 ? maxSlabs : Integer.MAX_VALUE;
+	}
+
+	public int chunk() { // const
+		return chunk;
+	}
+
+	public int slabs() { // const
+		return nslabs;
+	}
+
+	/**
+	 * reserved off-heap bytes
+	 */
+	public long reserved() { // const
+		return (long)nslabs * chunksPerSlab * chunk;
+	}
+
+	/**
+	 * off-heap segments allocated but not freed
+	 */
+	public long outstanding() { // const
+		return outstanding;
+	}
+
+	public KcpSeg alloc(final int size) {
+		if (size > chunk || size <= 0) // a reference segment needs no payload
+			return KcpSegPool.DEFAULT.alloc(size);
+		if (nfree > 0) {
+			final KcpSeg seg = free[--nfree];
+			free[nfree] = null;
+			outstanding++;
+			return seg;
+		}
+		if (slab == null || carved == chunksPerSlab) {
+			if (nslabs == maxSlabs)
+				return KcpSegPool.DEFAULT.alloc(size);
+			slab = ByteBuffer.allocateDirect(chunksPerSlab * chunk);
+			nslabs++;
+			carved = 0;
+		}
+		final int pos = carved++ * chunk;
+		slab.limit(pos + chunk);
+		slab.position(pos);
+		final KcpSeg seg = new KcpSeg(slab.slice());
+		slab.clear();
+		outstanding++;
+		return seg;
+	}
+
+	/**
+	 * return a segment from alloc, heap segments go back to KcpSegPool.DEFAULT
+	 */
+	public void free(final KcpSeg seg) {
+		if (seg.buf == null || seg.capacity() != chunk) {
+			KcpSegPool.DEFAULT.free(seg);
+			return;
+		}
+		seg.ref = null;
+		if (nfree == free.length)
+			free = Arrays.copyOf(free, nfree * 2);
+		free[nfree++] = seg;
+		outstanding--;
+	}
+}
@@ -0,0 +1,213 @@
+package kcp;
+
+/**
+ * Aggregating KcpMetrics: event counters, RTT/RTO histograms and queue/window gauges.
+ * <li>set one instance to a session for per-session stats, or share it by all sessions of a thread (eg. a
+ * KcpRuntime.Loop) for the aggregate, then merge the per-thread instances for the whole process.
+ * <li>not thread-safe: read or merge it on the thread of its sessions (eg. by KcpRuntime.execute).
+ */
+public class KcpStats extends KcpMetrics {
+	public static final int SENT = 0;             // data segments sent for the first time
+	public static final int SENT_BYTES = 1;       // payload bytes sent for the first time
+	public static final int RESENT_TIMEOUT = 2;   // data segments retransmitted by timeout
+	public static final int RESENT_FAST = 3;      // data segments retransmitted by fast resend
+	public static final int RESENT_BYTES = 4;     // payload bytes retransmitted
+	public static final int RECEIVED = 5;         // new data segments accepted
+	public static final int RECEIVED_BYTES = 6;   // payload bytes accepted
+	public static final int DUPLICATE = 7;        // data segments dropped as received before
+	public static final int OUT_OF_WINDOW = 8;    // data segments dropped beyond the receive window
+	public static final int DELIVERED = 9;        // messages moved out by recv
+	public static final int DELIVERED_BYTES = 10; // message bytes moved out by recv
+	public static final int CWND_CHANGES = 11;    // changes of cwnd or ssthresh
+	public static final int PROBE_ASK_SENT = 12;  // IKCP_CMD_WASK sent
+	public static final int PROBE_ASK_RECV = 13;  // IKCP_CMD_WASK received
+	public static final int PROBE_TELL_SENT = 14; // IKCP_CMD_WINS sent
+	public static final int PROBE_TELL_RECV = 15; // IKCP_CMD_WINS received
+	public static final int NCOUNTER = 16;
+	private static final String[] NAMES = {"sent", "sent_bytes", "resent_timeout", "resent_fast", "resent_bytes",
+			"received", "received_bytes", "duplicate", "out_of_window", "delivered", "delivered_bytes", "cwnd_changes",
+			"probe_ask_sent", "probe_ask_recv", "probe_tell_sent", "probe_tell_recv"};
+
+	private final long[] counters = new long[NCOUNTER];
+	private final KcpHistogram rtt;
+	private final KcpHistogram rto;
+	private int cwnd;     // last value
+	private int ssthresh; // last value
+	private int nsnd_que; // last value
+	private int nsnd_buf; // last value
+	private int nrcv_que; // last value
+	private int max_snd_que;
+	private int max_snd_buf;
+	private int max_rcv_que;
+
+	public KcpStats() {
+		this(KcpHistogram.PRECISION_DEF);
+	}
+
+	/**
+	 * @param precision see KcpHistogram
+	 */
+	public KcpStats(final int precision) {
+		rtt = new KcpHistogram(precision);
+		rto = new KcpHistogram(precision);
+	}
+
+	public static String name(final int counter) {
+		return NAMES[counter];
+	}
+
+	public final long get(final int counter) { // const
+		return counters[counter];
+	}
+
+	/**
+	 * RTT samples in millisec
+	 */
+	public final KcpHistogram rtt() { // const
+		return rtt;
+	}
+
+	/**
+	 * RTO after each RTT sample in millisec
+	 */
+	public final KcpHistogram rto() { // const
+		return rto;
+	}
+
+	public final int cwnd() { // const
+		return cwnd;
+	}
+
+	public final int ssthresh() { // const
+		return ssthresh;
+	}
+
+	public final int nsnd_que() { // const
+		return nsnd_que;
+	}
+
+	public final int nsnd_buf() { // const
+		return nsnd_buf;
+	}
+
+	public final int nrcv_que() { // const
+		return nrcv_que;
+	}
+
+	public final int max_snd_que() { // const
+		return max_snd_que;
+	}
+
+	public final int max_snd_buf() { // const
+		return max_snd_buf;
+	}
+
+	public final int max_rcv_que() { // const
+		return max_rcv_que;
+	}
+
+	@Override
+	public void sent(final Kcp kcp, final int sn, final int len) {
+		counters[SENT]++;
+		counters[SENT_BYTES] += len;
+	}
+
+	@Override
+	public void resent(final Kcp kcp, final int sn, final int len, final int xmit, final boolean fast) {
+		counters[fast ? RESENT_FAST : RESENT_TIMEOUT]++;
+		counters[RESENT_BYTES] += len;
+	}
+
+	@Override
+	public void received(final Kcp kcp, final int sn, final int len) {
+		counters[RECEIVED]++;
+		counters[RECEIVED_BYTES] += len;
+	}
+
+	@Override
+	public void duplicate(final Kcp kcp, final int sn) {
+		counters[DUPLICATE]++;
+	}
+
+	@Override
+	public void outOfWindow(final Kcp kcp, final int sn) {
+		counters[OUT_OF_WINDOW]++;
+	}
+
+	@Override
+	public void delivered(final Kcp kcp, final int len, final int count) {
+		counters[DELIVERED]++;
+		counters[DELIVERED_BYTES] += len;
+	}
+
+	@Override
+	public void rtt(final Kcp kcp, final int rtt, final int srtt, final int rttval, final int rto) {
+		this.rtt.record(rtt);
+		this.rto.record(rto);
+	}
+
+	@Override
+	public void cwnd(final Kcp kcp, final int cwnd, final int ssthresh) {
+		counters[CWND_CHANGES]++;
+		this.cwnd = cwnd;
+		this.ssthresh = ssthresh;
+	}
+
+	@Override
+	public void queues(final Kcp kcp, final int nsnd_que, final int nsnd_buf, final int nrcv_que) {
+		this.nsnd_que = nsnd_que;
+		this.nsnd_buf = nsnd_buf;
+		this.nrcv_que = nrcv_que;
+		max_snd_que = Math.max(max_snd_que, nsnd_que);
+		max_snd_buf = Math.max(max_snd_buf, nsnd_buf);
+		max_rcv_que = Math.max(max_rcv_que, nrcv_que);
+	}
+
+	@Override
+	public void probe(final Kcp kcp, final int cmd, final boolean received) {
+		if (cmd == Kcp.IKCP_CMD_WASK)
+			counters[received ? PROBE_ASK_RECV : PROBE_ASK_SENT]++;
+		else
+			counters[received ? PROBE_TELL_RECV : PROBE_TELL_SENT]++;
+	}
+
+	/**
+	 * add counters and histograms of 's' into this, gauges take the max
+	 */
+	public void merge(final KcpStats s) {
+		for (int i = 0; i < NCOUNTER; i++)
+			counters[i] += s.counters[i];
+		rtt.merge(s.rtt);
+		rto.merge(s.rto);
+		cwnd = Math.max(cwnd, s.cwnd);
+		ssthresh = Math.max(ssthresh, s.ssthresh);
+		nsnd_que = Math.max(nsnd_que, s.nsnd_que);
+		nsnd_buf = Math.max(nsnd_buf, s.nsnd_buf);
+		nrcv_que = Math.max(nrcv_que, s.nrcv_que);
+		max_snd_que = Math.max(max_snd_que, s.max_snd_que);
+		max_snd_buf = Math.max(max_snd_buf, s.max_snd_buf);
+		max_rcv_que = Math.max(max_rcv_que, s.max_rcv_que);
+	}
+
+	public void reset() {
+		for (int i = 0; i < NCOUNTER; i++)
+			counters[i] = 0;
+		rtt.reset();
+		rto.reset();
+		cwnd = ssthresh = nsnd_que = nsnd_buf = nrcv_que = 0;
+		max_snd_que = max_snd_buf = max_rcv_que = 0;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < NCOUNTER; i++)
+			sb.append(NAMES[i]).append('=').append(counters[i]).append(' ');
+		sb.append("cwnd=").append(cwnd).append(" ssthresh=").append(ssthresh);
+		sb.append(" snd_que=").append(nsnd_que).append('/').append(max_snd_que);
+		sb.append(" snd_buf=").append(nsnd_buf).append('/').append(max_snd_buf);
+		sb.append(" rcv_que=").append(nrcv_que).append('/').append(max_rcv_que);
+		sb.append("\nrtt: ").append(rtt).append("\nrto: ").append(rto);
+		return sb.toString();
+	}
+}
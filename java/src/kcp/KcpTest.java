@@ -1,12 +1,18 @@
 package kcp;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 final class DelayPacket {
 	final byte[] buf;
@@ -91,8 +97,8 @@ final class LatencySimulator {
 	int tx2;
 	int current = timer.iclock();
 	final int lostrate;
-	final int rttmin;
-	final int rttmax;
+	int rttmin;
+	int rttmax;
 	static final int nmax = 1000;
 	final LinkedList<DelayPacket> p12 = new LinkedList<DelayPacket>();
 	final LinkedList<DelayPacket> p21 = new LinkedList<DelayPacket>();
@@ -112,6 +118,12 @@ final class LatencySimulator {
 		return timer;
 	}
 
+	// 改变之后发送的包的 rtt 范围
+	void setRtt(int rttmin, int rttmax) {
+		this.rttmin = rttmin / 2;
+		this.rttmax = rttmax / 2;
+	}
+
 	// peer - 端点0/1，从0发送，从1接收；从1发送从0接收
 	void send(int peer, byte[] buf, int len) {
 		if (peer == 0) {
@@ -156,37 +168,177 @@ final class LatencySimulator {
 	}
 }
 
+// 逐字节校验：记录发送的消息，与接收到的数据比较
+final class Expect {
+	final ArrayList<byte[]> sent = new ArrayList<byte[]>();
+	int next; // 下一条要接收的消息
+	int off;  // 已接收的字节数
+	long bytes;
+
+	// 生成第 sent.size() 条消息，内容由序号和位置决定
+	byte[] add(int len) {
+		final int i = sent.size();
+		final byte[] m = new byte[len];
+		for (int j = 0; j < len; j++)
+			m[j] = (byte)(i * 131 + j * 7 + (j >> 8));
+		sent.add(m);
+		return m;
+	}
+
+	boolean done() {
+		return next == sent.size();
+	}
+
+	// 消息模式：buf[pos,pos+len) 是下一条消息的一部分，end 表示最后一部分
+	void check(byte[] buf, int pos, int len, boolean end) {
+		if (next >= sent.size())
+			throw new IllegalStateException("ERROR unexpected message: len=" + len);
+		final byte[] m = sent.get(next);
+		if (off + len > m.length || end && off + len != m.length)
+			throw new IllegalStateException("ERROR message " + next + ": len=" + (off + len) + '/' + m.length);
+		for (int j = 0; j < len; j++)
+			if (buf[pos + j] != m[off + j])
+				throw new IllegalStateException("ERROR message " + next + ": byte " + (off + j));
+		bytes += len;
+		off += len;
+		if (end) {
+			next++;
+			off = 0;
+		}
+	}
+
+	// 流模式：buf[pos,pos+len) 可以跨越消息边界
+	void checkStream(byte[] buf, int pos, int len) {
+		while (len > 0) {
+			if (next >= sent.size())
+				throw new IllegalStateException("ERROR unexpected bytes: len=" + len);
+			final int n = Math.min(len, sent.get(next).length - off);
+			check(buf, pos, n, off + n == sent.get(next).length);
+			pos += n;
+			len -= n;
+		}
+	}
+}
+
 public final class KcpTest extends Kcp {
 	private static final boolean VERBOSE = false;
-	private static final int POOLED_SEG_SIZE = IKCP_MTU_DEF - IKCP_OVERHEAD;
-	private final ArrayList<KcpSeg> segPool = new ArrayList<KcpSeg>();
 	private final LatencySimulator vnet;
 	private final int id;
+	private int outts;    // 最近输出的时间
+	private int outburst; // 该毫秒内输出的包数
+	private int maxburst; // 一毫秒内输出的最多包数
+	private int outcompact; // 输出的紧凑包数
+	private int outpacked;  // 首段为合并段的输出包数
+	private int maxcwnd;    // 输出时拥塞窗口的最大值
+	private int cwnddrops;  // 输出时拥塞窗口比上次减小的次数
+	private int lastcwnd;
+	private int outpush;    // 输出的数据段数 (不含紧凑包)
+	private int outsn = -1; // 输出的最大数据段序号
+	private int sendmode = SEND_ARRAY; // verify 中 kcp1 的发送方式
+	private byte[][] batchBufs; // 不为 null 时收到的包以批量 input 输入，每个包放在偏移 [0,4) 处
+	private int[] batchOffs;
+	private int[] batchLens;
+	private int[] batchStatus;
+	private KcpFec fec;   // 不为 null 时经 FEC 编码后发送，收到的包经 FEC 解码后输入
+	private KcpSlab slab; // 不为 null 时数据段从 slab 分配
+	private ByteBuffer inbuf; // 不为 null 时收到的包复制到这个缓冲区后以 input(ByteBuffer) 输入
+	private byte[] outcopy;   // buffer 为 null 时输出的包从 outbuf 复制到这里
 
 	private KcpTest(LatencySimulator vnet, int id, int conv, int current) {
-		super(conv, current, IKCP_MTU_DEF, null, false);
+		this(vnet, id, conv, current, IKCP_MTU_DEF, false);
+	}
+
+	private KcpTest(LatencySimulator vnet, int id, int conv, int current, int mtu) {
+		this(vnet, id, conv, current, mtu, false);
+	}
+
+	private KcpTest(LatencySimulator vnet, int id, int conv, int current, int mtu, boolean stream) {
+		super(conv, current, mtu, null, stream);
 		this.vnet = vnet;
 		this.id = id;
 	}
 
-	// 设置kcp的下层输出，这里为 udp_output，模拟udp网络输出函数
-	@Override
-	public void output(int len) {
-		vnet.send(id, buffer, len);
+	// 输出到 out（直接缓冲区时 buffer 为 null，output 从 outbuf 读取）
+	private KcpTest(LatencySimulator vnet, int id, int conv, int current, ByteBuffer out, boolean stream) {
+		super(conv, current, out, stream);
+		this.vnet = vnet;
+		this.id = id;
+	}
+
+	// 收到的包每次最多 n 个批量输入
+	private void batch(int n) {
+		batchBufs = new byte[n][IKCP_MTU_DEF + 3];
+		batchOffs = new int[n];
+		batchLens = new int[n];
+		batchStatus = new int[n];
+	}
+
+	// 在 kcp 和虚拟网络之间加入 FEC，kcp 的 mtu 须为 IKCP_MTU_DEF - KcpFec.MTU_RESERVED
+	private void fec(int data, int minParity, int maxParity) {
+		fec = new KcpFec(IKCP_MTU_DEF, data, minParity, maxParity) {
+			@Override
+			protected void output(byte[] buf, int len) {
+				vnet.send(id, buf, len);
+			}
+
+			@Override
+			protected int deliver(byte[] buf, int pos, int len) {
+				return input(buf, pos, len);
+			}
+		};
 	}
 
 	@Override
 	public KcpSeg allocSeg(int size) {
-		if (size > POOLED_SEG_SIZE)
-			return new KcpSeg(size);
-		final int poolSize = segPool.size();
-		return poolSize > 0 ? segPool.remove(poolSize - 1) : new KcpSeg(POOLED_SEG_SIZE);
+		return slab != null ? slab.alloc(size) : super.allocSeg(size);
 	}
 
 	@Override
 	public void freeSeg(KcpSeg seg) {
-		if (seg.capacity() == POOLED_SEG_SIZE)
-			segPool.add(seg);
+		if (slab != null)
+			slab.free(seg);
+		else
+			super.freeSeg(seg);
+	}
+
+	// 设置kcp的下层输出，这里为 udp_output，模拟udp网络输出函数
+	@Override
+	public void output(int len) {
+		byte[] buf = buffer;
+		if (buf == null) {
+			if (outcopy == null)
+				outcopy = new byte[outbuf.capacity()];
+			buf = outcopy;
+			outbuf.duplicate().get(buf, 0, len);
+		}
+		final int current = vnet.getTimer().iclock();
+		if (current != outts) {
+			outts = current;
+			outburst = 0;
+		}
+		maxburst = Math.max(maxburst, ++outburst);
+		final int cwnd = congestion().cwnd();
+		maxcwnd = Math.max(maxcwnd, cwnd);
+		if (cwnd < lastcwnd)
+			cwnddrops++;
+		lastcwnd = cwnd;
+		if (len > 4 && (buf[4] & 0xff) != IKCP_CMD_COMPACT) {
+			for (int p = 0; p + IKCP_OVERHEAD <= len; p += IKCP_OVERHEAD + decode32u(buf, p + 20)) {
+				if ((buf[p + 4] & 0xff) == IKCP_CMD_PUSH) {
+					outpush++;
+					outsn = Math.max(outsn, decode32u(buf, p + 12));
+				}
+			}
+		}
+		if (len > 4 && (buf[4] & 0xff) == IKCP_CMD_COMPACT)
+			outcompact++;
+		else if (len > 5 && (buf[4] & 0xff) == IKCP_CMD_PUSH && (buf[5] & 0xff) == IKCP_FRG_PACKED)
+			outpacked++;
+		if (fec != null) {
+			if (fec.encode(buf, 0, len) < 0)
+				throw new IllegalStateException("ERROR fec encode: len=" + len);
+		} else
+			vnet.send(id, buf, len);
 	}
 
 	private static int segCount(KcpSeg head) {
@@ -196,6 +348,14 @@ public final class KcpTest extends Kcp {
 		return n;
 	}
 
+	private static int segCount(KcpSeg[] ring) {
+		int n = 0;
+		for (KcpSeg p : ring)
+			if (p != null)
+				n++;
+		return n;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder(); // ("KcpTest(id=").append(id).append(")\n");
@@ -217,6 +377,8 @@ public final class KcpTest extends Kcp {
 					sb.append(field.getBoolean(this) ? 1 : 0);
 				else if (type == KcpSeg.class && field.get(this) != null)
 					sb.append('[').append(segCount((KcpSeg)field.get(this))).append(']');
+				else if (type == KcpSeg[].class && field.get(this) != null)
+					sb.append('[').append(segCount((KcpSeg[])field.get(this))).append(']');
 				else if (type == int[].class && field.get(this) != null)
 					sb.append('[').append(((int[])field.get(this)).length).append(']');
 				else if (type == byte[].class && field.get(this) != null)
@@ -363,9 +525,1056 @@ public final class KcpTest extends Kcp {
 //		System.in.read();
 	}
 
+	private static final int RECV_MSG = 0;    // recv 整条消息
+	private static final int RECV_STREAM = 1; // recv 随机大小，类似 TCP（流模式）
+	private static final int RECV_CHUNK = 2;  // recvChunk 每次最多 5000 字节
+	private static final int RECV_VIEW = 3;   // recv(KcpMsg)
+	private static final int RECV_DIRECT = 4; // recv(ByteBuffer) 直接缓冲区，流模式下每次随机大小
+	private static final int SEND_ARRAY = 0;  // send(byte[]) 逐条发送
+	private static final int SEND_GATHER_BUFFER = 1; // send(ByteBuffer[]) 一次发送，堆内和直接缓冲区交替
+	private static final int SEND_GATHER_KCPBUF = 2; // send(KcpBuf[]) 一次发送
+	private static final int SEND_DIRECT = 3; // send(ByteBuffer) 逐条发送，直接缓冲区
+
+	// 处理虚拟网络：把 kcp 收到的udp包输入到kcp
+	private static void input(LatencySimulator vnet, KcpTest kcp, byte[] buf) {
+		final byte[][] bufs = kcp.batchBufs;
+		if (bufs != null) {
+			for (int n = bufs.length; n == bufs.length; ) {
+				for (n = 0; n < bufs.length; n++) {
+					final int hr = vnet.recv(kcp.id, buf, buf.length);
+					if (hr < 0)
+						break;
+					final int off = n & 3;
+					System.arraycopy(buf, 0, bufs[n], off, hr);
+					kcp.batchOffs[n] = off;
+					kcp.batchLens[n] = hr;
+				}
+				if (n > 0 && kcp.input(bufs, kcp.batchOffs, kcp.batchLens, n, kcp.batchStatus) != n)
+					throw new IllegalStateException("ERROR batch input: " + Arrays.toString(kcp.batchStatus));
+			}
+			return;
+		}
+		for (int hr; (hr = vnet.recv(kcp.id, buf, buf.length)) >= 0; ) {
+			if (kcp.fec != null)
+				kcp.fec.decode(buf, 0, hr);
+			else if (kcp.inbuf != null) {
+				final ByteBuffer in = kcp.inbuf;
+				in.clear();
+				in.put(buf, 0, hr).flip();
+				if (kcp.input(in) < 0 || in.hasRemaining())
+					throw new IllegalStateException("ERROR input(ByteBuffer): len=" + hr);
+			} else
+				kcp.input(buf, 0, hr);
+		}
+	}
+
+	// 按 kcp.sendmode 发送 msgs[0,n)
+	private static void send(String name, KcpTest kcp, byte[][] msgs, int n) {
+		final int[] status = new int[n];
+		if (kcp.sendmode == SEND_GATHER_BUFFER) {
+			final ByteBuffer[] bufs = new ByteBuffer[n + 1]; // 从偏移 1 开始
+			for (int i = 0; i < n; i++) {
+				final byte[] m = msgs[i];
+				if ((i & 1) == 0)
+					bufs[i + 1] = ByteBuffer.wrap(m);
+				else {
+					bufs[i + 1] = ByteBuffer.allocateDirect(m.length).put(m);
+					bufs[i + 1].flip();
+				}
+			}
+			if (kcp.send(bufs, 1, n, status) != n)
+				throw new IllegalStateException("ERROR " + name + " gather send: " + Arrays.toString(status));
+			for (int i = 1; i <= n; i++)
+				if (bufs[i].hasRemaining())
+					throw new IllegalStateException("ERROR " + name + " gather send: position");
+		} else if (kcp.sendmode == SEND_GATHER_KCPBUF) {
+			final KcpBuf[] bufs = new KcpBuf[n];
+			for (int i = 0; i < n; i++)
+				bufs[i] = new KcpBuf(msgs[i]);
+			if (kcp.send(bufs, 0, n, status) != n)
+				throw new IllegalStateException("ERROR " + name + " gather send: " + Arrays.toString(status));
+			for (int i = 0; i < n; i++)
+				bufs[i].release();
+		} else if (kcp.sendmode == SEND_DIRECT) {
+			for (int i = 0; i < n; i++) {
+				final ByteBuffer b = ByteBuffer.allocateDirect(msgs[i].length).put(msgs[i]);
+				b.flip();
+				if (kcp.send(b) < 0 || b.hasRemaining())
+					throw new IllegalStateException("ERROR " + name + " send(ByteBuffer): len=" + msgs[i].length);
+			}
+		} else {
+			for (int i = 0; i < n; i++)
+				if (kcp.send(msgs[i], 0, msgs[i].length) < 0)
+					throw new IllegalStateException("ERROR " + name + " send: len=" + msgs[i].length);
+		}
+	}
+
+	// 有损链路上的逐字节校验：kcp1 发送 count 条长度为 [0,maxlen) 的消息（流模式为 [1,maxlen]），
+	// kcp2 按 recvmode 每 drain 毫秒接收一次并比较
+	private static long verify(String name, LatencySimulator vnet, KcpTest kcp1, KcpTest kcp2,
+							   int count, int maxlen, int recvmode, int drain) throws Exception {
+		final Expect expect = new Expect();
+		final byte[] buf = new byte[Math.max(maxlen, 2000)];
+		final KcpMsg msg = new KcpMsg();
+		final ByteBuffer rbuf = ByteBuffer.allocateDirect(buf.length);
+		final byte[][] msgs = new byte[4][];
+		final boolean stream = kcp2.stream();
+		int current = vnet.getTimer().iclock();
+		final int ts1 = current;
+		while (!expect.done() || expect.sent.size() < count) {
+			if (current - ts1 > 600000)
+				throw new IllegalStateException("ERROR " + name + " timeout: " + expect.next + '/' + count);
+			vnet.getTimer().sleep(1);
+			current = vnet.getTimer().iclock();
+			int nmsg = 0;
+			for (int i = 0; i < 4 && expect.sent.size() < count && kcp1.waitsnd() < 512; i++)
+				msgs[nmsg++] = expect.add(stream ? Rand.nextInt(maxlen) + 1 : Rand.nextInt(maxlen));
+			if (nmsg > 0)
+				send(name, kcp1, msgs, nmsg);
+			kcp1.update(current);
+			kcp2.update(current);
+			if (kcp1.fec != null) { // 每次 update 之后关闭当前组
+				kcp1.fec.flush();
+				kcp2.fec.flush();
+			}
+			input(vnet, kcp2, buf);
+			input(vnet, kcp1, buf);
+			if (current % drain != 0)
+				continue;
+			for (int hr; ; ) {
+				if (recvmode == RECV_STREAM) {
+					if ((hr = kcp2.recv(buf, 0, Rand.nextInt(maxlen) + 1)) < 0)
+						break;
+					expect.checkStream(buf, 0, hr);
+				} else if (recvmode == RECV_CHUNK) {
+					if ((hr = kcp2.recvChunk(buf, 0, 5000)) < 0)
+						break;
+					expect.check(buf, 0, hr, kcp2.chunkEnd());
+				} else if (recvmode == RECV_DIRECT) {
+					rbuf.clear();
+					if (stream)
+						rbuf.limit(Rand.nextInt(maxlen) + 1);
+					if ((hr = kcp2.recv(rbuf)) < 0)
+						break;
+					if (rbuf.position() != hr)
+						throw new IllegalStateException("ERROR " + name + " recv(ByteBuffer): position=" + rbuf.position());
+					rbuf.flip();
+					rbuf.get(buf, 0, hr);
+					if (stream)
+						expect.checkStream(buf, 0, hr);
+					else
+						expect.check(buf, 0, hr, true);
+				} else if (recvmode == RECV_VIEW) {
+					if ((hr = kcp2.recv(msg)) < 0)
+						break;
+					msg.read(0, buf, 0, hr);
+					msg.release();
+					if (stream)
+						expect.checkStream(buf, 0, hr);
+					else
+						expect.check(buf, 0, hr, true);
+				} else {
+					if ((hr = kcp2.recv(buf, 0, buf.length)) < 0)
+						break;
+					expect.check(buf, 0, hr, true);
+				}
+			}
+		}
+		System.out.printf("%s result (%dms): msgs=%d bytes=%d tx=%d\n", name, current - ts1, count, expect.bytes, vnet.tx1);
+		return expect.bytes;
+	}
+
+	// 接收窗口大于接收环，且接收队列不及时取走
+	private static void testWindow() throws Exception {
+		final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+		final int current = vnet.getTimer().iclock();
+		final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current);
+		final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current);
+		kcp1.wndsize(1024, 1024);
+		kcp2.wndsize(1024, 1024);
+		kcp1.nodelay(1, 10, 2, 1);
+		kcp2.nodelay(1, 10, 2, 1);
+		verify("window", vnet, kcp1, kcp2, 20000, 100, RECV_MSG, 500);
+	}
+
+	// KcpServer：多个会话共用一条有损链路，服务端按 conv 分发并回射，只在 check 到期时 update
+	private static void testServer() throws Exception {
+		final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+		int current = vnet.getTimer().iclock();
+		final int n = 8, count = 200, conv0 = 0x11223344;
+		final KcpTest[] clients = new KcpTest[n];
+		final Expect[] expects = new Expect[n];
+		for (int i = 0; i < n; i++) {
+			clients[i] = new KcpTest(vnet, 0, conv0 + i, current);
+			clients[i].nodelay(1, 10, 2, 1);
+			expects[i] = new Expect();
+		}
+		final KcpServer<KcpTest> server = new KcpServer<KcpTest>(current, 0) {
+			@Override
+			protected KcpTest accept(int conv, int current) {
+				if (conv - conv0 < 0 || conv - conv0 >= n)
+					return null;
+				final KcpTest kcp = new KcpTest(vnet, 1, conv, current);
+				kcp.nodelay(1, 10, 2, 1);
+				return kcp;
+			}
+		};
+		final byte[] buf = new byte[2000];
+		final int ts1 = current;
+		int due = current;
+		long bytes = 0;
+		for (boolean done = false; !done; ) {
+			if (current - ts1 > 600000)
+				throw new IllegalStateException("ERROR server timeout");
+			vnet.getTimer().sleep(1);
+			current = vnet.getTimer().iclock();
+			for (int i = 0; i < n; i++) {
+				if (expects[i].sent.size() < count && Rand.nextInt(10) == 0) {
+					final byte[] m = expects[i].add(Rand.nextInt(100));
+					clients[i].send(m, 0, m.length);
+				}
+				clients[i].update(current);
+			}
+			if (current - due >= 0) {
+				server.update(current);
+				due = server.check(current);
+			}
+			for (int hr; (hr = vnet.recv(1, buf, buf.length)) >= 0; )
+				server.input(buf, 0, hr);
+			for (int i = 0; i < n; i++) { // 服务端回射
+				final KcpTest kcp = server.get(conv0 + i);
+				if (kcp != null)
+					for (int hr; (hr = kcp.recv(buf, 0, buf.length)) >= 0; )
+						kcp.send(buf, 0, hr);
+			}
+			for (int hr; (hr = vnet.recv(0, buf, buf.length)) >= 0; )
+				clients[decode32u(buf, 0) - conv0].input(buf, 0, hr);
+			done = true;
+			for (int i = 0; i < n; i++) {
+				for (int hr; (hr = clients[i].recv(buf, 0, buf.length)) >= 0; )
+					expects[i].check(buf, 0, hr, true);
+				done &= expects[i].done() && expects[i].sent.size() == count;
+			}
+		}
+		for (Expect expect : expects)
+			bytes += expect.bytes;
+		if (server.size() != n || server.remove(conv0) == null || server.get(conv0) != null || server.size() != n - 1)
+			throw new IllegalStateException("ERROR server sessions: " + server.size());
+		System.out.printf("server result (%dms): sessions=%d msgs=%d bytes=%d tx=%d\n", current - ts1, n, n * count, bytes, vnet.tx2);
+
+		// 只有高位不同的 conv 也应均匀分布，不能挤在一条探测链上
+		final int m = 4096;
+		for (int i = 0; i < m; i++)
+			server.add(new KcpTest(vnet, 1, i << 16, current));
+		for (int i = 0; i < m; i += 2)
+			server.remove(i << 16);
+		for (int i = 0; i < m; i++)
+			if ((server.get(i << 16) != null) != ((i & 1) != 0))
+				throw new IllegalStateException("ERROR server map: conv=" + (i << 16));
+		final Field keysField = KcpServer.class.getDeclaredField("keys"), valsField = KcpServer.class.getDeclaredField("vals");
+		keysField.setAccessible(true);
+		valsField.setAccessible(true);
+		final int[] keys = (int[])keysField.get(server), vals = (int[])valsField.get(server);
+		int maxProbe = 0;
+		for (int i = 0; i < keys.length; i++)
+			if (vals[i] >= 0)
+				maxProbe = Math.max(maxProbe, (i - KcpServer.hash(keys[i])) & (keys.length - 1));
+		if (maxProbe > 64)
+			throw new IllegalStateException("ERROR server map: max probe=" + maxProbe);
+	}
+
+	// KcpRuntime 的会话：经内存输出到对端运行时，每 10 个包丢 1 个
+	private static final class RtSession extends Kcp {
+		private final KcpRuntime<RtSession> peer;
+		private final byte[] rbuf = new byte[2000];
+		private int npacket;
+		private int nreceived;
+
+		RtSession(int conv, int current, byte[] buffer, KcpRuntime<RtSession> peer) {
+			super(conv, current, IKCP_MTU_DEF, buffer, false);
+			this.peer = peer;
+			nodelay(1, 10, 2, 1);
+		}
+
+		@Override
+		public void output(int len) {
+			if (++npacket % 10 != 0)
+				peer.input(buffer, 0, len);
+		}
+	}
+
+	// KcpRuntime：客户端在其他线程 send，服务端在 loop 线程回射，客户端在 loop 线程逐字节校验。
+	// 回调和任务抛出的异常交给 error，loop 继续运行
+	private static void testRuntime() throws Exception {
+		final int n = 64, count = 100;
+		final Expect[] expects = new Expect[n];
+		final AtomicInteger done = new AtomicInteger();
+		final AtomicInteger clientErrors = new AtomicInteger(), serverErrors = new AtomicInteger();
+		final KcpRuntime<RtSession> client = new KcpRuntime<RtSession>(2, IKCP_MTU_DEF, 0) {
+			@Override
+			protected RtSession accept(Loop loop, int conv, int current) {
+				return null;
+			}
+
+			@Override
+			protected void received(RtSession kcp) {
+				final Expect expect = expects[kcp.conv()];
+				for (int hr; (hr = kcp.recv(kcp.rbuf, 0, kcp.rbuf.length)) >= 0; ) {
+					expect.check(kcp.rbuf, 0, hr, true);
+					if (expect.done())
+						done.incrementAndGet();
+				}
+			}
+
+			@Override
+			protected void error(int conv, Throwable e) {
+				if (!"test error".equals(e.getMessage()) || conv < 0 || conv >= n)
+					throw new IllegalStateException("ERROR runtime: conv=" + conv, e);
+				clientErrors.incrementAndGet();
+			}
+		};
+		final KcpRuntime<RtSession> server = new KcpRuntime<RtSession>(2, IKCP_MTU_DEF, 0) {
+			@Override
+			protected RtSession accept(Loop loop, int conv, int current) {
+				return new RtSession(conv, current, loop.buffer(), client);
+			}
+
+			@Override
+			protected void received(RtSession kcp) {
+				for (int hr; (hr = kcp.recv(kcp.rbuf, 0, kcp.rbuf.length)) >= 0; )
+					kcp.send(kcp.rbuf, 0, hr);
+				if (++kcp.nreceived % 10 == 0)
+					throw new IllegalStateException("test error");
+			}
+
+			@Override
+			protected void error(int conv, Throwable e) {
+				if (!"test error".equals(e.getMessage()))
+					throw new IllegalStateException("ERROR runtime: conv=" + conv, e);
+				serverErrors.incrementAndGet();
+			}
+		};
+		long bytes = 0;
+		for (int i = 0; i < n; i++) {
+			expects[i] = new Expect();
+			for (int j = 0; j < count; j++)
+				bytes += expects[i].add(Rand.nextInt(1000)).length;
+		}
+		server.stop(); // 未启动时无操作
+		int highLoops = 0; // 只有高位不同的 conv 也应分到各个 loop
+		for (int i = 0; i < n; i++)
+			highLoops |= 1 << client.loop(i << 16).index();
+		if (highLoops != (1 << client.loopCount()) - 1)
+			throw new IllegalStateException("ERROR runtime loops: " + highLoops);
+		client.start("client");
+		server.start("server");
+		for (int i = 0; i < n; i++) {
+			final int conv = i;
+			client.execute(conv, new Runnable() {
+				@Override
+				public void run() {
+					final KcpRuntime<RtSession>.Loop loop = client.loop(conv);
+					loop.add(new RtSession(conv, KcpRuntime.now(), loop.buffer(), server));
+					int other = n;
+					while (client.loop(other) != loop)
+						other++;
+					if (client.send(other, new byte[1], 0, 1) != -4)
+						throw new IllegalStateException("ERROR runtime: send without session");
+					client.execute(conv, new Runnable() { // 在 loop 线程上执行，排在当前任务之后
+						@Override
+						public void run() {
+							throw new IllegalStateException("test error");
+						}
+					});
+				}
+			});
+		}
+		for (int j = 0; j < count; j++) {
+			for (int i = 0; i < n; i++) {
+				final byte[] m = expects[i].sent.get(j);
+				client.send(i, m, 0, m.length);
+			}
+		}
+		for (long t = System.nanoTime(); done.get() < n; Thread.sleep(10))
+			if (System.nanoTime() - t > 30000000000L)
+				throw new IllegalStateException("ERROR runtime timeout: " + done.get() + '/' + n);
+		client.stop();
+		server.stop();
+		if (clientErrors.get() != n || serverErrors.get() == 0)
+			throw new IllegalStateException("ERROR runtime errors: " + clientErrors.get() + ',' + serverErrors.get());
+		System.out.printf("runtime result: sessions=%d msgs=%d bytes=%d\n", n, n * count, bytes);
+	}
+
+	// KcpTransport 的会话：每 10 个包丢 1 个
+	// 记录 deallocate 次数的 KcpBuf
+	private static final class CountBuf extends KcpBuf {
+		private int deallocs;
+
+		CountBuf(byte[] data) {
+			super(data);
+		}
+
+		@Override
+		protected void deallocate() {
+			deallocs++;
+		}
+	}
+
+	private static final class UdpSession extends KcpTransport.Session {
+		private final byte[] rbuf = new byte[2000];
+		private int npacket;
+
+		UdpSession(KcpTransport transport, SocketAddress peer, int conv, int current, byte[] buffer) {
+			super(transport, peer, conv, current, IKCP_MTU_DEF, buffer, false);
+			nodelay(1, 10, 2, 1);
+		}
+
+		@Override
+		public void output(int len) {
+			if (++npacket % 10 != 0)
+				super.output(len);
+		}
+	}
+
+	// KcpTransport：经本机回环 UDP 回射，服务端绑定两个 SO_REUSEPORT 通道
+	private static void testTransport() throws Exception {
+		final int n = 32, count = 100;
+		final Expect[] expects = new Expect[n];
+		final AtomicInteger done = new AtomicInteger();
+		final KcpTransport[] transports = new KcpTransport[2]; // client, server
+		final KcpRuntime<UdpSession> client = new KcpRuntime<UdpSession>(2, IKCP_MTU_DEF, 0) {
+			@Override
+			protected UdpSession accept(Loop loop, int conv, int current) {
+				return null;
+			}
+
+			@Override
+			protected void received(UdpSession kcp) {
+				final Expect expect = expects[kcp.conv()];
+				for (int hr; (hr = kcp.recv(kcp.rbuf, 0, kcp.rbuf.length)) >= 0; ) {
+					expect.check(kcp.rbuf, 0, hr, true);
+					if (expect.done())
+						done.incrementAndGet();
+				}
+			}
+		};
+		final KcpRuntime<UdpSession> server = new KcpRuntime<UdpSession>(2, IKCP_MTU_DEF, 0) {
+			@Override
+			protected UdpSession accept(Loop loop, int conv, int current) {
+				return new UdpSession(transports[1], (SocketAddress)loop.peer(), conv, current, loop.buffer());
+			}
+
+			@Override
+			protected void received(UdpSession kcp) {
+				for (int hr; (hr = kcp.recv(kcp.rbuf, 0, kcp.rbuf.length)) >= 0; )
+					kcp.send(kcp.rbuf, 0, hr);
+			}
+		};
+		long bytes = 0;
+		for (int i = 0; i < n; i++) {
+			expects[i] = new Expect();
+			for (int j = 0; j < count; j++)
+				bytes += expects[i].add(Rand.nextInt(1000)).length;
+		}
+		transports[0] = new KcpTransport(client, new InetSocketAddress("127.0.0.1", 0), 1, 0, 2000);
+		transports[1] = new KcpTransport(server, new InetSocketAddress("127.0.0.1", 0), 2, 0, 2000);
+		final SocketAddress address = transports[1].localAddress();
+		client.start("client");
+		server.start("server");
+		transports[0].start("client-udp");
+		transports[1].start("server-udp");
+		for (int i = 0; i < n; i++) {
+			final int conv = i;
+			client.execute(conv, new Runnable() {
+				@Override
+				public void run() {
+					final KcpRuntime<UdpSession>.Loop loop = client.loop(conv);
+					loop.add(new UdpSession(transports[0], address, conv, KcpRuntime.now(), loop.buffer()));
+				}
+			});
+		}
+		for (int j = 0; j < count; j++) {
+			for (int i = 0; i < n; i++) {
+				final byte[] m = expects[i].sent.get(j);
+				client.send(i, m, 0, m.length);
+			}
+		}
+		for (long t = System.nanoTime(); done.get() < n; Thread.sleep(10))
+			if (System.nanoTime() - t > 30000000000L)
+				throw new IllegalStateException("ERROR transport timeout: " + done.get() + '/' + n);
+		transports[0].stop();
+		transports[1].stop();
+		client.stop();
+		server.stop();
+		System.out.printf("transport result: sessions=%d msgs=%d bytes=%d\n", n, n * count, bytes);
+	}
+
+	// KcpSegPool：短生命周期线程的缓存在其结束后归还共享层
+	private static void testPool() throws Exception {
+		final KcpSegPool pool = new KcpSegPool(256, 4096);
+		final int nthread = 100, nseg = 300;
+		for (int i = 0; i < nthread; i++) {
+			final Thread thread = new Thread() {
+				@Override
+				public void run() {
+					final KcpSeg[] segs = new KcpSeg[nseg];
+					for (int j = 0; j < nseg; j++)
+						segs[j] = pool.alloc(IKCP_MTU_DEF - IKCP_OVERHEAD);
+					for (KcpSeg seg : segs)
+						pool.free(seg);
+				}
+			};
+			thread.start();
+			thread.join();
+		}
+		final long outstanding = pool.outstanding(); // reclaims the caches of terminated threads
+		if (outstanding != 0 || pool.caches() != 0 || pool.misses() != nseg)
+			throw new IllegalStateException("ERROR pool: outstanding=" + outstanding + " caches=" + pool.caches());
+		System.out.printf("pool result: threads=%d hits=%d misses=%d\n", nthread, pool.hits(), pool.misses());
+	}
+
+	// 直接缓冲区：两端输出到直接缓冲区（buffer 为 null），以 send/input/recv(ByteBuffer) 收发，有损链路上逐字节校验
+	private static void testDirect() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			final boolean stream = i == 1;
+			final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+			final int current = vnet.getTimer().iclock();
+			final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current, ByteBuffer.allocateDirect(IKCP_MTU_DEF), stream);
+			final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current, ByteBuffer.allocateDirect(IKCP_MTU_DEF), stream);
+			if (kcp1.buffer != null || !kcp1.outbuf.isDirect() || kcp1.mss() != IKCP_MTU_DEF - IKCP_OVERHEAD)
+				throw new IllegalStateException("ERROR direct output buffer");
+			kcp1.inbuf = ByteBuffer.allocateDirect(IKCP_MTU_DEF);
+			kcp2.inbuf = ByteBuffer.allocateDirect(IKCP_MTU_DEF);
+			kcp1.nodelay(1, 10, 2, 1);
+			kcp2.nodelay(1, 10, 2, 1);
+			kcp1.wndsize(128, 128);
+			kcp2.wndsize(128, 128);
+			kcp1.sendmode = SEND_DIRECT;
+			verify(stream ? "direct stream" : "direct", vnet, kcp1, kcp2, 5000, 3000, RECV_DIRECT, 1);
+		}
+	}
+
+	// KcpSlab：两端的数据段都从同一个 slab 分配，有损链路上逐字节校验；
+	// 再发一批不等收完就 release 两端，窗口和队列里的段都要还给 slab
+	private static void testSlab() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			final boolean stream = i == 1;
+			final String name = stream ? "slab stream" : "slab";
+			final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+			final int current = vnet.getTimer().iclock();
+			final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current, IKCP_MTU_DEF, stream);
+			final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current, IKCP_MTU_DEF, stream);
+			final KcpSlab slab = new KcpSlab(kcp1.mss(), 64 * kcp1.mss(), 0);
+			kcp1.slab = slab;
+			kcp2.slab = slab;
+			kcp1.nodelay(1, 10, 2, 1);
+			kcp2.nodelay(1, 10, 2, 1);
+			kcp1.wndsize(128, 128);
+			kcp2.wndsize(128, 128);
+			verify(name, vnet, kcp1, kcp2, 5000, 3000, stream ? RECV_STREAM : RECV_MSG, 1);
+
+			final byte[] m = new byte[3000];
+			for (int j = 0; j < 100; j++)
+				kcp1.send(m, 0, m.length);
+			final byte[] buf = new byte[2000];
+			for (int t = 0; t < 100; t++) {
+				vnet.getTimer().sleep(1);
+				final int now = vnet.getTimer().iclock();
+				kcp1.update(now);
+				kcp2.update(now);
+				input(vnet, kcp1, buf);
+				input(vnet, kcp2, buf);
+			}
+			final long outstanding = slab.outstanding();
+			kcp1.release();
+			kcp2.release();
+			if (slab.slabs() == 0 || outstanding == 0 || slab.outstanding() != 0)
+				throw new IllegalStateException("ERROR " + name + ": slabs=" + slab.slabs() + " outstanding="
+						+ outstanding + '/' + slab.outstanding());
+			System.out.printf("%s release: slabs=%d outstanding=%d\n", name, slab.slabs(), outstanding);
+		}
+	}
+
+	// KcpBuf 零拷贝发送：同一个缓冲区切成多条消息在有损链路上发送，创建者发送后即释放自己的引用，
+	// 最后一个段确认后 deallocate 恰好一次；未确认时 release 会话也恰好一次
+	private static void testKcpBuf() throws Exception {
+		final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+		int current = vnet.getTimer().iclock();
+		final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current);
+		final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current);
+		kcp1.nodelay(1, 10, 2, 1);
+		kcp2.nodelay(1, 10, 2, 1);
+		kcp1.wndsize(128, 128);
+		kcp2.wndsize(128, 128);
+		final byte[] data = new byte[100 * kcp1.mss()];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte)Rand.nextInt(256);
+		final CountBuf kbuf = new CountBuf(data);
+		for (int pos = 0; pos < data.length; pos += 3000)
+			if (kcp1.send(kbuf, pos, Math.min(3000, data.length - pos)) < 0)
+				throw new IllegalStateException("ERROR kcpbuf send: pos=" + pos);
+		kbuf.release();
+		final byte[] buf = new byte[3000];
+		final byte[] recv = new byte[data.length];
+		int nrecv = 0;
+		for (int t = 0; ; t++) {
+			if (t == 60000)
+				throw new IllegalStateException("ERROR kcpbuf timeout: recv=" + nrecv + " refCnt=" + kbuf.refCnt());
+			vnet.getTimer().sleep(1);
+			current = vnet.getTimer().iclock();
+			kcp1.update(current);
+			kcp2.update(current);
+			input(vnet, kcp1, buf);
+			input(vnet, kcp2, buf);
+			for (int hr; (hr = kcp2.recv(buf, 0, buf.length)) >= 0; nrecv += hr)
+				System.arraycopy(buf, 0, recv, nrecv, hr);
+			if (kbuf.deallocs != (kbuf.refCnt() == 0 ? 1 : 0))
+				throw new IllegalStateException("ERROR kcpbuf deallocs=" + kbuf.deallocs + " refCnt=" + kbuf.refCnt());
+			if (nrecv == data.length && kcp1.waitsnd() == 0)
+				break;
+		}
+		if (!Arrays.equals(recv, data) || kbuf.deallocs != 1 || kbuf.refCnt() != 0)
+			throw new IllegalStateException("ERROR kcpbuf: deallocs=" + kbuf.deallocs + " refCnt=" + kbuf.refCnt());
+		kcp1.release();
+		if (kbuf.deallocs != 1)
+			throw new IllegalStateException("ERROR kcpbuf release: deallocs=" + kbuf.deallocs);
+
+		// 部分段已输出但都未确认时 release
+		final KcpTest kcp3 = new KcpTest(vnet, 0, 0x11223344, current);
+		final CountBuf kbuf3 = new CountBuf(data);
+		if (kcp3.send(kbuf3, 0, 3000) < 0 || kcp3.send(kbuf3, 3000, data.length - 3000) < 0)
+			throw new IllegalStateException("ERROR kcpbuf send");
+		kbuf3.release();
+		kcp3.update(current);
+		final int refs = kbuf3.refCnt();
+		if (refs == 0 || kcp3.waitsnd() == 0 || kbuf3.deallocs != 0)
+			throw new IllegalStateException("ERROR kcpbuf unacked: refCnt=" + refs);
+		kcp3.release();
+		if (kbuf3.deallocs != 1 || kbuf3.refCnt() != 0)
+			throw new IllegalStateException("ERROR kcpbuf release: deallocs=" + kbuf3.deallocs);
+		System.out.printf("kcpbuf result: bytes=%d unacked refs=%d\n", data.length, refs);
+	}
+
+	// 统计 recorder 文本输出中事件 ev 和命令 cmd 的记录数（cmd 为 null 时不限），xmit 不小于 minxmit
+	private static int countRecords(KcpRecorder recorder, String ev, String cmd, int minxmit) throws Exception {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		recorder.dump(new PrintStream(os, true, "UTF-8"), null);
+		final String[] lines = os.toString("UTF-8").split("\n");
+		if (lines.length != recorder.size() + 1)
+			throw new IllegalStateException("ERROR recorder lines: " + lines.length + '/' + recorder.size());
+		int n = 0;
+		for (int i = 1; i < lines.length; i++) {
+			final String[] f = lines[i].trim().split("\\s+"); // current conv ev cmd sn ts una wnd rto xmit len
+			if (f[2].equals(ev) && (cmd == null || f[3].equals(cmd)) && Integer.parseInt(f[9].substring(5)) >= minxmit)
+				n++;
+		}
+		return n;
+	}
+
+	// KcpRecorder：记录全部事件，接收的消息数和重传都能从记录中数出来
+	private static void testRecorder() throws Exception {
+		final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+		final int current = vnet.getTimer().iclock();
+		final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current);
+		final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current);
+		kcp1.nodelay(1, 10, 2, 1);
+		kcp2.nodelay(1, 10, 2, 1);
+		kcp1.recorder(new KcpRecorder(1 << 16));
+		kcp2.recorder(new KcpRecorder(1 << 16));
+		final int count = 500;
+		verify("recorder", vnet, kcp1, kcp2, count, 2000, RECV_MSG, 1);
+		final KcpRecorder rec1 = kcp1.recorder(), rec2 = kcp2.recorder();
+		final int recv = countRecords(rec2, "recv", null, 0), resend = countRecords(rec1, "out", "push", 2);
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		rec1.write(os);
+		if (rec1.total() > rec1.capacity() || recv != count || resend == 0 || os.size() != 12 + rec1.size() * 32)
+			throw new IllegalStateException("ERROR recorder: recv=" + recv + " resend=" + resend + " bytes=" + os.size());
+		System.out.printf("recorder records: sender=%d receiver=%d recv=%d resend=%d\n",
+				rec1.size(), rec2.size(), recv, resend);
+	}
+
+	// SACK：双方协商后用 ack 区间确认乱序的段
+	private static void testSack() throws Exception {
+		final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+		final int current = vnet.getTimer().iclock();
+		final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current);
+		final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current);
+		kcp1.nodelay(1, 10, 2, 1);
+		kcp2.nodelay(1, 10, 2, 1);
+		kcp1.wndsize(256, 256);
+		kcp2.wndsize(256, 256);
+		kcp1.sack(true);
+		kcp2.sack(true);
+		kcp2.recorder(new KcpRecorder(1 << 16));
+		verify("sack", vnet, kcp1, kcp2, 5000, 2000, RECV_MSG, 1);
+		final int sacks = countRecords(kcp2.recorder(), "out", "sack", 0);
+		if (sacks == 0)
+			throw new IllegalStateException("ERROR sack: not used");
+		System.out.printf("sack records: sack=%d ack=%d\n", sacks, countRecords(kcp2.recorder(), "out", "ack", 0));
+	}
+
+	// 紧凑包：小消息在有丢包的链路上经紧凑包逐字节校验
+	private static void testCompact() throws Exception {
+		final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+		final int current = vnet.getTimer().iclock();
+		final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current);
+		final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current);
+		kcp1.nodelay(1, 10, 2, 1);
+		kcp2.nodelay(1, 10, 2, 1);
+		kcp1.wndsize(256, 256);
+		kcp2.wndsize(256, 256);
+		kcp1.compact(true);
+		kcp2.compact(true);
+		verify("compact", vnet, kcp1, kcp2, 10000, 100, RECV_MSG, 1);
+		if (kcp1.outcompact == 0 || kcp2.outcompact == 0)
+			throw new IllegalStateException("ERROR compact: packets=" + kcp1.outcompact + '/' + kcp2.outcompact);
+		System.out.printf("compact packets: send=%d recv=%d\n", kcp1.outcompact, kcp2.outcompact);
+	}
+
+	// 合并：小消息合并到一个段里发送，分别以 recv 和 KcpMsg 拆开逐字节校验
+	private static void testCoalesce() throws Exception {
+		final int[] delays = {0, 5};
+		for (int i = 0; i < delays.length; i++) {
+			final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+			final int current = vnet.getTimer().iclock();
+			final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current);
+			final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current);
+			kcp1.nodelay(1, 10, 2, 1);
+			kcp2.nodelay(1, 10, 2, 1);
+			kcp1.wndsize(256, 256);
+			kcp2.wndsize(256, 256);
+			kcp1.coalesce(delays[i]);
+			kcp2.coalesce(delays[i]);
+			final String name = "coalesce " + delays[i];
+			verify(name, vnet, kcp1, kcp2, 10000, 100, i == 0 ? RECV_MSG : RECV_VIEW, 1);
+			if (kcp1.outpacked == 0)
+				throw new IllegalStateException("ERROR " + name + ": not packed");
+			System.out.printf("%s packed packets: %d\n", name, kcp1.outpacked);
+		}
+	}
+
+	// 流模式：固定的小缓冲区随机大小地读，或 recv(KcpMsg) 逐段取走，都按字节流校验
+	private static void testStream() throws Exception {
+		final String[] names = {"stream recv", "stream view"};
+		final int[] recvmodes = {RECV_STREAM, RECV_VIEW};
+		for (int i = 0; i < names.length; i++) {
+			final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+			final int current = vnet.getTimer().iclock();
+			final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current, IKCP_MTU_DEF, true);
+			final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current, IKCP_MTU_DEF, true);
+			kcp1.nodelay(1, 10, 2, 1);
+			kcp2.nodelay(1, 10, 2, 1);
+			kcp1.wndsize(256, 256);
+			kcp2.wndsize(256, 256);
+			verify(names[i], vnet, kcp1, kcp2, 5000, 3000, recvmodes[i], 1);
+		}
+	}
+
+	// 大消息：超过接收窗口的消息以 recvChunk 边到边收，放不下的普通消息也按段切开
+	private static void testLarge() throws Exception {
+		final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+		final int current = vnet.getTimer().iclock();
+		final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current);
+		final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current);
+		kcp1.nodelay(1, 10, 2, 1);
+		kcp2.nodelay(1, 10, 2, 1);
+		kcp1.large(true);
+		kcp2.large(true);
+		final int maxlen = IKCP_WND_RCV * kcp1.mss() * 2;
+		verify("large", vnet, kcp1, kcp2, 200, maxlen, RECV_CHUNK, 1);
+	}
+
+	private static void muxSend(KcpMux mux, int id, Expect expect, int[] sendts, int len, int current) {
+		final byte[] m = expect.add(len);
+		sendts[expect.sent.size() - 1] = current;
+		if (mux.stream(id).send(m, 0, m.length) != 0)
+			throw new IllegalStateException("ERROR mux send: stream=" + id + " len=" + len);
+	}
+
+	// KcpMux：一个 kcp 上三个流，高优先级的小消息不被两个批量流阻塞，每个流逐字节校验
+	private static void testMux() throws Exception {
+		final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+		int current = vnet.getTimer().iclock();
+		final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current);
+		final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current);
+		kcp1.nodelay(1, 10, 2, 1);
+		kcp2.nodelay(1, 10, 2, 1);
+		kcp1.wndsize(256, 256);
+		kcp2.wndsize(256, 256);
+		final int window = 0x10000, n = 3;
+		final int[] counts = {500, 100, 100}; // 流 0 每 20ms 一条小消息，流 1、2 是 1:3 的批量数据
+		final Expect[] expects = new Expect[n];
+		final int[][] sendts = new int[n][];
+		final long[] delays = new long[n];
+		for (int i = 0; i < n; i++) {
+			expects[i] = new Expect();
+			sendts[i] = new int[counts[i]];
+		}
+		final KcpMux mux1 = new KcpMux(kcp1, window, 256) {
+			@Override
+			protected void received(Stream stream, byte[] data, int pos, int len) {
+				throw new IllegalStateException("ERROR mux: message to the sender");
+			}
+		};
+		final KcpMux mux2 = new KcpMux(kcp2, window, 256) {
+			@Override
+			protected void received(Stream stream, byte[] data, int pos, int len) {
+				final Expect expect = expects[stream.id()];
+				expect.check(data, pos, len, true);
+				delays[stream.id()] += vnet.getTimer().iclock() - sendts[stream.id()][expect.next - 1];
+			}
+		};
+		mux1.stream(0).priority(0, 1);
+		mux1.stream(1).priority(1, 1);
+		mux1.stream(2).priority(1, 3);
+		if (mux1.stream(1).send(new byte[window + 1], 0, window + 1) != -2)
+			throw new IllegalStateException("ERROR mux: message longer than window");
+		try {
+			new KcpMux(new KcpTest(vnet, 0, 0x11223344, current, IKCP_MTU_DEF, true), window, 256) {
+				@Override
+				protected void received(Stream stream, byte[] data, int pos, int len) {
+				}
+			};
+			throw new IllegalStateException("ERROR mux: stream mode");
+		} catch (IllegalArgumentException e) {
+		}
+		final byte[] buf = new byte[2000];
+		final int ts1 = current;
+		for (int done = 0; done < n; ) {
+			if (current - ts1 > 600000)
+				throw new IllegalStateException("ERROR mux timeout: " + expects[0].next + ',' + expects[1].next + ','
+						+ expects[2].next);
+			vnet.getTimer().sleep(1);
+			current = vnet.getTimer().iclock();
+			if (current % 20 == 0 && expects[0].sent.size() < counts[0])
+				muxSend(mux1, 0, expects[0], sendts[0], Rand.nextInt(100), current);
+			for (int i = 1; i < n; i++) {
+				if (mux1.stream(i).pending() < window && expects[i].sent.size() < counts[i])
+					muxSend(mux1, i, expects[i], sendts[i], Rand.nextInt(window) + 1, current);
+			}
+			mux1.schedule();
+			kcp1.update(current);
+			kcp2.update(current);
+			input(vnet, kcp2, buf);
+			input(vnet, kcp1, buf);
+			if (mux2.recv() < 0 || mux1.recv() < 0)
+				throw new IllegalStateException("ERROR mux recv");
+			done = 0;
+			for (int i = 0; i < n; i++)
+				if (expects[i].done() && expects[i].sent.size() == counts[i])
+					done++;
+		}
+		final long delay0 = delays[0] / counts[0], delay1 = delays[1] / counts[1], delay2 = delays[2] / counts[2];
+		if (delay0 * 4 > Math.min(delay1, delay2))
+			throw new IllegalStateException("ERROR mux delay: " + delay0 + ',' + delay1 + ',' + delay2);
+		System.out.printf("mux result (%dms): bytes=%d,%d,%d avg delay=%d,%d,%dms\n", current - ts1, expects[0].bytes,
+				expects[1].bytes, expects[2].bytes, delay0, delay1, delay2);
+	}
+
+	// 拥塞控制：打开拥塞窗口 (nc=0)，CUBIC 和 BBR 在有丢包的链路上逐字节校验，窗口应从初始值打开并在丢包时收缩。
+	// BBR 之后 rtt 变大，旧的最小 rtt 过期，须经 PROBE_RTT 测出新的最小 rtt
+	private static void testCongestion() throws Exception {
+		final String[] names = {"cubic", "bbr"};
+		for (int i = 0; i < names.length; i++) {
+			final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+			final int current = vnet.getTimer().iclock();
+			final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current);
+			final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current);
+			kcp1.nodelay(1, 10, 2, 0);
+			kcp2.nodelay(1, 10, 2, 0);
+			kcp1.wndsize(256, 256);
+			kcp2.wndsize(256, 256);
+			kcp1.congestion(i == 0 ? new KcpCubic() : new KcpBbr());
+			final int cwnd0 = kcp1.congestion().cwnd();
+			kcp1.maxcwnd = kcp1.lastcwnd = cwnd0;
+			verify(names[i], vnet, kcp1, kcp2, 5000, 2000, RECV_MSG, 1);
+			if (kcp1.maxcwnd <= cwnd0 || kcp1.cwnddrops == 0)
+				throw new IllegalStateException("ERROR " + names[i] + ": cwnd=" + cwnd0 + '~' + kcp1.maxcwnd + " drops="
+						+ kcp1.cwnddrops);
+			if (i == 1) {
+				vnet.setRtt(200, 250);
+				verify("bbr rtt", vnet, kcp1, kcp2, 10000, 2000, RECV_MSG, 1); // 超过 MIN_RTT_WIN
+				final int minRtt = ((KcpBbr)kcp1.congestion()).minRtt();
+				if (minRtt < 200)
+					throw new IllegalStateException("ERROR bbr: min rtt=" + minRtt);
+			}
+			System.out.printf("%s cwnd: init=%d max=%d drops=%d\n", names[i], cwnd0, kcp1.maxcwnd, kcp1.cwnddrops);
+		}
+	}
+
+	// 批量输入：双方收到的包按批输入 (每批最多 16 个，偏移各不相同)，打开拥塞窗口，逐字节校验并应有快速重传
+	private static void testBatch() throws Exception {
+		final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+		final int current = vnet.getTimer().iclock();
+		final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current);
+		final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current);
+		kcp1.nodelay(1, 10, 2, 0);
+		kcp2.nodelay(1, 10, 2, 0);
+		kcp1.wndsize(256, 256);
+		kcp2.wndsize(256, 256);
+		kcp1.batch(16);
+		kcp2.batch(16);
+		final KcpStats stats = new KcpStats();
+		kcp1.metrics(stats);
+		verify("batch", vnet, kcp1, kcp2, 3000, 2000, RECV_MSG, 1);
+		final long fast = stats.get(KcpStats.RESENT_FAST);
+		if (fast == 0 || kcp1.maxcwnd <= 1)
+			throw new IllegalStateException("ERROR batch: fast resent=" + fast + " cwnd=" + kcp1.maxcwnd);
+		System.out.printf("batch fast resent=%d timeout resent=%d max cwnd=%d\n", fast,
+				stats.get(KcpStats.RESENT_TIMEOUT), kcp1.maxcwnd);
+	}
+
+	// KcpStats：计数与会话自身的输出和接收一致；直方图的百分位与已知的记录值一致；合并后等于分别记录之和
+	private static void testStats() throws Exception {
+		final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+		final int current = vnet.getTimer().iclock();
+		final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current);
+		final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current);
+		kcp1.nodelay(1, 10, 2, 1);
+		kcp2.nodelay(1, 10, 2, 1);
+		final KcpStats s1 = new KcpStats(), s2 = new KcpStats();
+		kcp1.metrics(s1);
+		kcp2.metrics(s2);
+		final int count = 2000;
+		final long bytes = verify("stats", vnet, kcp1, kcp2, count, 2000, RECV_MSG, 1);
+		final long sent = s1.get(KcpStats.SENT), resent = s1.get(KcpStats.RESENT_TIMEOUT) + s1.get(KcpStats.RESENT_FAST);
+		if (sent != kcp1.outsn + 1 || sent + resent != kcp1.outpush || resent == 0 || s1.get(KcpStats.SENT_BYTES) != bytes
+				|| s2.get(KcpStats.RECEIVED) != sent || s2.get(KcpStats.RECEIVED_BYTES) != bytes
+				|| s2.get(KcpStats.DELIVERED) != count || s2.get(KcpStats.DELIVERED_BYTES) != bytes
+				|| s1.rtt().count() == 0 || s1.rtt().min() < 60)
+			throw new IllegalStateException("ERROR stats: " + s1 + '\n' + s2);
+
+		final KcpHistogram h = new KcpHistogram(), h1 = new KcpHistogram(), h2 = new KcpHistogram();
+		for (int v = 1; v <= 1000; v++) {
+			h.record(v);
+			(v % 3 == 0 ? h1 : h2).record(v);
+		}
+		h1.merge(h2);
+		final double[] ps = {1, 10, 50, 99, 100};
+		final int[] vs = {10, 103, 511, 991, 1000}; // 32 以下精确，以上为所在区间的最大值
+		for (int i = 0; i < ps.length; i++)
+			if (h.percentile(ps[i]) != vs[i] || h1.percentile(ps[i]) != vs[i])
+				throw new IllegalStateException("ERROR histogram: p" + ps[i] + '=' + h.percentile(ps[i]) + '/' + vs[i]);
+		if (h.count() != 1000 || h.min() != 1 || h.max() != 1000 || h.mean() != 500.5 || h1.count() != 1000
+				|| h1.mean() != 500.5)
+			throw new IllegalStateException("ERROR histogram: " + h + '\n' + h1);
+
+		final KcpStats merged = new KcpStats();
+		merged.merge(s1);
+		merged.merge(s2);
+		for (int i = 0; i < KcpStats.NCOUNTER; i++)
+			if (merged.get(i) != s1.get(i) + s2.get(i))
+				throw new IllegalStateException("ERROR stats merge: " + KcpStats.name(i));
+		if (merged.rtt().count() != s1.rtt().count() + s2.rtt().count())
+			throw new IllegalStateException("ERROR stats merge: rtt");
+		System.out.printf("stats sent=%d resent=%d rtt p50=%d p99=%d\n", sent, resent, s1.rtt().percentile(50),
+				s1.rtt().percentile(99));
+	}
+
+	// 集中发送：消息模式下 ByteBuffer[] 和 KcpBuf[] 每个元素一条消息，流模式下 ByteBuffer[] 跨元素填满段，
+	// 都按拼接后的输入逐字节校验；超长的元素被拒绝，不影响其他元素
+	private static void testGather() throws Exception {
+		final String[] names = {"gather buffer", "gather kcpbuf", "gather stream"};
+		final int[] sendmodes = {SEND_GATHER_BUFFER, SEND_GATHER_KCPBUF, SEND_GATHER_BUFFER};
+		for (int i = 0; i < names.length; i++) {
+			final boolean stream = i == 2;
+			final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+			final int current = vnet.getTimer().iclock();
+			final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current, IKCP_MTU_DEF, stream);
+			final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current, IKCP_MTU_DEF, stream);
+			kcp1.nodelay(1, 10, 2, 1);
+			kcp2.nodelay(1, 10, 2, 1);
+			kcp1.wndsize(256, 256);
+			kcp2.wndsize(256, 256);
+			kcp1.sendmode = sendmodes[i];
+			final long bytes = verify(names[i], vnet, kcp1, kcp2, 5000, stream ? 300 : 2000, stream ? RECV_STREAM : RECV_MSG, 1);
+			if (stream && kcp1.outsn + 1 > (bytes + kcp1.mss() - 1) / kcp1.mss() * 2) // 尾段跨元素合并，段数接近字节数/mss
+				throw new IllegalStateException("ERROR " + names[i] + ": segments=" + (kcp1.outsn + 1));
+		}
+
+		for (int i = 0; i < 2; i++) {
+			final boolean stream = i == 1;
+			final KcpTest kcp = new KcpTest(new LatencySimulator(0, 60, 125), 0, 0x11223344, 0, IKCP_MTU_DEF, stream);
+			final int big = IKCP_WND_RCV * kcp.mss();
+			final ByteBuffer[] bufs = {ByteBuffer.allocate(100), ByteBuffer.allocate(big), ByteBuffer.allocateDirect(100)};
+			final int[] status = new int[bufs.length];
+			if (kcp.send(bufs, 0, bufs.length, status) != 2 || status[0] != 0 || status[1] != -2 || status[2] != 0
+					|| bufs[0].hasRemaining() || bufs[1].position() != 0 || bufs[2].hasRemaining()
+					|| kcp.waitsnd() != (stream ? 1 : 2))
+				throw new IllegalStateException("ERROR gather oversize: " + Arrays.toString(status) + " waitsnd="
+						+ kcp.waitsnd());
+		}
+	}
+
+	// pacing：新段按 rtt 内的令牌桶发送，同样的数据每毫秒的突发包数应明显减少
+	private static void testPacing() throws Exception {
+		final int[] maxburst = new int[2];
+		for (int i = 0; i < 2; i++) {
+			final LatencySimulator vnet = new LatencySimulator(10, 60, 125);
+			final int current = vnet.getTimer().iclock();
+			final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current);
+			final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current);
+			kcp1.nodelay(1, 10, 2, 1);
+			kcp2.nodelay(1, 10, 2, 1);
+			kcp1.wndsize(256, 256);
+			kcp2.wndsize(256, 256);
+			kcp1.pacing(i * 125);
+			verify(i == 0 ? "unpaced" : "paced", vnet, kcp1, kcp2, 3000, 2000, RECV_MSG, 1);
+			maxburst[i] = kcp1.maxburst;
+		}
+		if (maxburst[1] * 2 > maxburst[0])
+			throw new IllegalStateException("ERROR pacing: maxburst=" + maxburst[1] + '/' + maxburst[0]);
+		System.out.printf("pacing max packets per ms: unpaced=%d paced=%d\n", maxburst[0], maxburst[1]);
+	}
+
+	// FEC：满长度的包经 XOR、RS 和自适应校验恢复；无丢包的链路上自适应不应估计出丢包
+	private static void testFec() throws Exception {
+		final String[] names = {"fec xor", "fec rs", "fec adaptive", "fec clean"};
+		final int[][] configs = {{8, 1, 1}, {8, 3, 3}, {8, 0, 4}, {8, 0, 4}}; // data, minParity, maxParity
+		for (int i = 0; i < names.length; i++) {
+			final LatencySimulator vnet = new LatencySimulator(i < 3 ? 10 : 0, 60, 125);
+			final int current = vnet.getTimer().iclock();
+			final int mtu = IKCP_MTU_DEF - KcpFec.MTU_RESERVED;
+			final KcpTest kcp1 = new KcpTest(vnet, 0, 0x11223344, current, mtu);
+			final KcpTest kcp2 = new KcpTest(vnet, 1, 0x11223344, current, mtu);
+			kcp1.nodelay(1, 10, 2, 1);
+			kcp2.nodelay(1, 10, 2, 1);
+			kcp1.fec(configs[i][0], configs[i][1], configs[i][2]);
+			kcp2.fec(configs[i][0], configs[i][1], configs[i][2]);
+			verify(names[i], vnet, kcp1, kcp2, 2000, 4000, RECV_MSG, 1);
+			final KcpFec fec = kcp2.fec;
+			if (fec.failed() != 0 || (i < 3 ? fec.recovered() == 0 : fec.loss() != 0 || kcp1.fec.loss() != 0))
+				throw new IllegalStateException("ERROR " + names[i] + ": recovered=" + fec.recovered() + " failed="
+						+ fec.failed() + " loss=" + fec.loss() + '/' + kcp1.fec.loss());
+			System.out.printf("%s recovered=%d loss=%d parity=%d\n", names[i], fec.recovered(), fec.loss(),
+					kcp1.fec.parityShards());
+		}
+	}
+
 	public static void main(String[] args) throws Exception {
 		test(0); // 默认模式，类似 TCP：正常模式，无快速重传，常规流控
 		test(1); // 普通模式，关闭流控等
 		test(2); // 快速模式，所有开关都打开，且关闭流控
+		testWindow(); // 大接收窗口
+		testServer(); // 会话管理
+		testRuntime(); // 多线程运行时
+		testTransport(); // UDP 传输
+		testPool(); // 线程缓存回收
+		testSlab(); // 堆外分配
+		testDirect(); // 直接缓冲区收发
+		testKcpBuf(); // 零拷贝发送的引用计数
+		testRecorder(); // 事件记录
+		testSack(); // 选择确认
+		testCompact(); // 紧凑包
+		testCoalesce(); // 小消息合并
+		testLarge(); // 大消息
+		testStream(); // 流模式
+		testMux(); // 多路复用
+		testPacing(); // 发送节奏
+		testCongestion(); // 拥塞控制
+		testBatch(); // 批量输入
+		testStats(); // 统计
+		testGather(); // 集中发送
+		testFec(); // 前向纠错
 	}
 }
@@ -0,0 +1,277 @@
+package kcp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+
+/**
+ * UDP transport for KcpRuntime based on NIO DatagramChannel and Selector.
+ * <li>one receive thread per channel, draining up to 'batch' datagrams per wakeup into its pooled direct buffers.
+ * <li>received datagrams are dispatched to the owning loop of KcpRuntime by 'conv', with the source address as peer.
+ * the buffer itself is input to Kcp on the loop thread without copy, then it is free for the receive thread again.
+ * <li>several channels bind the same address with SO_REUSEPORT (eg. one per core), the kernel spreads flows over them.
+ * <li>I/O errors of the channels go to 'error', the receive thread goes on.
+ * <p>Usage: new KcpRuntime->new KcpTransport->runtime.start->start; create Session in runtime 'accept' with loop.peer()
+ */
+public class KcpTransport {
+	public static final int BATCH_DEF = 64;
+	private final KcpRuntime<?> runtime;
+	private final Worker[] workers;
+	private volatile boolean running;
+
+	/**
+	 * a Kcp session which outputs to its peer through the transport, its buffer can be shared in a runtime loop
+	 */
+	public static class Session extends Kcp {
+		private final KcpTransport transport;
+		private SocketAddress peer;
+
+		public Session(final KcpTransport transport, final SocketAddress peer, final int conv, final int current,
+					   final int mtu, final byte[] buffer, final boolean stream) {
+			super(conv, current, mtu, buffer, stream);
+			this.transport = transport;
+			this.peer = peer;
+		}
+
+		public Session(final KcpTransport transport, final SocketAddress peer, final int conv, final int current,
+					   final ByteBuffer buffer, final boolean stream) {
+			super(conv, current, buffer, stream);
+			this.transport = transport;
+			this.peer = peer;
+		}
+
+		public final SocketAddress peer() { // const
+			return peer;
+		}
+
+		/**
+		 * update the peer address, eg. in KcpRuntime.received with loop.peer() for NAT rebinding
+		 */
+		public final void peer(final SocketAddress peer) {
+			if (peer != null)
+				this.peer = peer;
+		}
+
+		@Override
+		public void output(final int len) {
+			outbuf.limit(len);
+			transport.send(outbuf, peer);
+		}
+	}
+
+	private static final class Slot implements Runnable { // a receive buffer, busy until Kcp.input on the loop is done
+		final ByteBuffer buf;
+		volatile boolean busy;
+
+		Slot(final int mtu) {
+			buf = ByteBuffer.allocateDirect(mtu);
+		}
+
+		@Override
+		public void run() { // loop thread
+			busy = false;
+		}
+	}
+
+	private final class Worker implements Runnable {
+		private final int index;
+		private final DatagramChannel channel;
+		private final Selector selector;
+		private final int mtu;
+		private Slot[] slots;            // grows while the loops hold them, bounded by the queues of KcpRuntime
+		private int cursor;
+		private final Slot[] received;   // [0,batch)
+		private final SocketAddress[] peers;
+		private Thread thread;
+
+		Worker(final int index, final DatagramChannel channel, final int batch, final int mtu) throws IOException {
+			this.index = index;
+			this.channel = channel;
+			this.mtu = mtu;
+			selector = Selector.open();
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
+			slots = new Slot[batch * 2];
+			for (int i = 0; i < slots.length; i++)
+				slots[i] = new Slot(mtu);
+			received = new Slot[batch];
+			peers = new SocketAddress[batch];
+		}
+
+		private Slot acquire() { // a free slot
+			final Slot[] slots = this.slots;
+			final int n = slots.length;
+			for (int i = 0; i < n; i++) {
+				final Slot slot = slots[cursor];
+				if (++cursor == n)
+					cursor = 0;
+				if (!slot.busy)
+					return slot;
+			}
+			final Slot[] newSlots = Arrays.copyOf(slots, n * 2);
+			for (int i = n; i < newSlots.length; i++)
+				newSlots[i] = new Slot(mtu);
+			this.slots = newSlots;
+			cursor = n + 1;
+			return newSlots[n];
+		}
+
+		private void drain() throws IOException {
+			final Slot[] received = this.received;
+			final SocketAddress[] peers = this.peers;
+			for (int n = received.length; n == received.length; ) {
+				for (n = 0; n < received.length; n++) {
+					final Slot slot = acquire();
+					final ByteBuffer buf = slot.buf;
+					buf.clear();
+					final SocketAddress peer = channel.receive(buf);
+					if (peer == null)
+						break;
+					buf.flip();
+					slot.busy = true;
+					received[n] = slot;
+					peers[n] = peer;
+				}
+				for (int i = 0; i < n; i++) {
+					final Slot slot = received[i];
+					if (runtime.input(slot.buf, peers[i], slot) < 0)
+						slot.busy = false; // dropped
+					received[i] = null;
+					peers[i] = null;
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select();
+					selector.selectedKeys().clear();
+					drain();
+				} catch (ClosedChannelException e) {
+					break;
+				} catch (IOException e) {
+					if (!running)
+						break;
+					error(index, e);
+				}
+			}
+		}
+
+		void close() {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				error(index, e);
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				error(index, e);
+			}
+		}
+	}
+
+	/**
+	 * bind 'nchannels' channels on 'local' (with SO_REUSEPORT if more than one), port 0 picks one port for all.
+	 * only one channel is bound if the platform has no SO_REUSEPORT, see channelCount.
+	 * @param batch max datagrams received per drain, <= 0 for BATCH_DEF
+	 * @param mtu max datagram size, larger datagrams are truncated (and rejected by Kcp.input)
+	 */
+	public KcpTransport(final KcpRuntime<?> runtime, SocketAddress local, final int nchannels, int batch, final int mtu)
+			throws IOException {
+		if (batch <= 0)
+			batch = BATCH_DEF;
+		this.runtime = runtime;
+		final Worker[] workers = new Worker[Math.max(nchannels, 1)];
+		int n = 0;
+		try {
+			while (n < workers.length) {
+				final DatagramChannel channel = DatagramChannel.open();
+				boolean last = false;
+				try {
+					if (workers.length > 1) {
+						if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+							channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+						else
+							last = true; // the address can not be shared
+					}
+					channel.bind(local);
+					local = channel.getLocalAddress();
+					workers[n] = new Worker(n, channel, batch, mtu);
+					n++;
+				} catch (IOException e) {
+					channel.close();
+					throw e;
+				}
+				if (last)
+					break;
+			}
+		} catch (IOException e) {
+			for (final Worker worker : workers)
+				if (worker != null)
+					worker.close();
+			throw e;
+		}
+		this.workers = n < workers.length ? Arrays.copyOf(workers, n) : workers;
+	}
+
+	/**
+	 * called on the receive thread of 'channel' [0,channelCount) for an I/O error, then it goes on receiving.
+	 * also called for an error of closing a channel on the thread of 'stop' or the constructor.
+	 * does nothing by default (eg. log it, or call 'stop', which does not wait for the calling thread)
+	 */
+	protected void error(@SuppressWarnings("unused") int channel, @SuppressWarnings("unused") IOException e) {
+	}
+
+	public final int channelCount() { // const
+		return workers.length;
+	}
+
+	public final SocketAddress localAddress() throws IOException { // const
+		return workers[0].channel.getLocalAddress();
+	}
+
+	public final void start(final String name) {
+		running = true;
+		for (int i = 0; i < workers.length; i++) {
+			final Worker worker = workers[i];
+			worker.thread = new Thread(worker, name + '-' + i);
+			worker.thread.setDaemon(true);
+			worker.thread.start();
+		}
+	}
+
+	/**
+	 * stop and join the receive threads (except the calling one), then close the channels
+	 */
+	public final void stop() throws InterruptedException {
+		running = false;
+		for (final Worker worker : workers)
+			worker.selector.wakeup();
+		for (final Worker worker : workers)
+			if (worker.thread != null && worker.thread != Thread.currentThread())
+				worker.thread.join();
+		for (final Worker worker : workers)
+			worker.close();
+	}
+
+	/**
+	 * send the remaining bytes of 'buf' to 'peer' on any thread (one channel by peer), returns sent bytes or -1 for error
+	 */
+	public final int send(final ByteBuffer buf, final SocketAddress peer) {
+		final DatagramChannel channel = workers[(peer.hashCode() & 0x7fffffff) % workers.length].channel;
+		try {
+			return channel.send(buf, peer);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+}